@@ -16,6 +16,11 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.opendaylight.controller.liblldp.BitBufferHelper;
 import org.opendaylight.controller.liblldp.Packet;
 
+/**
+ * @deprecated the field map based serialization is slow on the packet path,
+ * use {@link FrameEncoder} instead.
+ */
+@Deprecated
 public class ArpFrame extends Packet{
     private static final String HTYPE = "htype";
     private static final String PTYPE = "ptype";
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.packet;
+
+import org.opendaylight.router.PacketUtil;
+
+/**
+ * Flyweight decoder for the received ethernet frame. It reads the header
+ * fields directly from the payload at fixed offsets, so decoding a packet
+ * doesn't copy or allocate anything. One instance can be re-used for every
+ * packet by calling {@link #wrap(byte[])}; it is not thread safe.
+ */
+public final class FrameDecoder {
+    public static final int ETHER_HEADER_SIZE = 14;
+    public static final int VLAN_HEADER_SIZE = 4;
+    public static final int ARP_HEADER_SIZE = 28;
+    public static final int IPV4_HEADER_SIZE = 20;
+
+    public static final int ETHERTYPE_IPV4 = 0x0800;
+    public static final int ETHERTYPE_ARP = 0x0806;
+    public static final int ETHERTYPE_VLAN = 0x8100;
+
+    public static final int ARP_HW_TYPE_ETHERNET = 1;
+    public static final int ARP_REQUEST = 1;
+    public static final int ARP_REPLY = 2;
+
+    private byte[] data;
+    private int length;
+    private int l3Offset;
+
+    /**
+     * Point the decoder to a new frame.
+     * @param data raw frame starting with the ethernet header
+     * @return this decoder
+     */
+    public FrameDecoder wrap(byte[] data) {
+        this.data = data;
+        this.length = data == null ? 0 : data.length;
+        this.l3Offset = isVlanTagged() ? ETHER_HEADER_SIZE + VLAN_HEADER_SIZE : ETHER_HEADER_SIZE;
+        return this;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public boolean hasEthernetHeader() {
+        return length >= ETHER_HEADER_SIZE;
+    }
+
+    public long getDestinationMac() {
+        return getMac(0);
+    }
+
+    public long getSourceMac() {
+        return getMac(6);
+    }
+
+    /**
+     * @return ethertype of the outer ethernet header
+     */
+    public int getEtherType() {
+        return hasEthernetHeader() ? getShort(12) : 0;
+    }
+
+    public boolean isVlanTagged() {
+        return length >= ETHER_HEADER_SIZE + VLAN_HEADER_SIZE && getShort(12) == ETHERTYPE_VLAN;
+    }
+
+    public int getVlanPcp() {
+        return (data[ETHER_HEADER_SIZE] & 0xff) >>> 5;
+    }
+
+    public int getVlanCfi() {
+        return (data[ETHER_HEADER_SIZE] >>> 4) & 0x01;
+    }
+
+    public int getVlanId() {
+        return getShort(ETHER_HEADER_SIZE) & 0x0fff;
+    }
+
+    /**
+     * @return ethertype of the encapsulated payload, looking past the vlan tag
+     */
+    public int getPayloadEtherType() {
+        return isVlanTagged() ? getShort(ETHER_HEADER_SIZE + 2) : getEtherType();
+    }
+
+    /**
+     * @return offset of the network layer header inside the frame
+     */
+    public int getL3Offset() {
+        return l3Offset;
+    }
+
+    /**
+     * @return true for an ethernet/ipv4 arp packet, the only one the
+     *         fixed offsets of the arp getters apply to
+     */
+    public boolean hasArpHeader() {
+        return getPayloadEtherType() == ETHERTYPE_ARP && length >= l3Offset + ARP_HEADER_SIZE
+                && getArpHardwareType() == ARP_HW_TYPE_ETHERNET
+                && getArpProtocolType() == ETHERTYPE_IPV4
+                && data[l3Offset + 4] == 6 && data[l3Offset + 5] == 4;
+    }
+
+    public int getArpHardwareType() {
+        return getShort(l3Offset);
+    }
+
+    public int getArpProtocolType() {
+        return getShort(l3Offset + 2);
+    }
+
+    public int getArpOperation() {
+        return getShort(l3Offset + 6);
+    }
+
+    public long getArpSenderMac() {
+        return getMac(l3Offset + 8);
+    }
+
+    public int getArpSenderIp() {
+        return getInt(l3Offset + 14);
+    }
+
+    public long getArpTargetMac() {
+        return getMac(l3Offset + 18);
+    }
+
+    public int getArpTargetIp() {
+        return getInt(l3Offset + 24);
+    }
+
+    public boolean hasIpv4Header() {
+        return getPayloadEtherType() == ETHERTYPE_IPV4
+                && length >= l3Offset + IPV4_HEADER_SIZE
+                && (data[l3Offset] & 0xf0) == 0x40;
+    }
+
+    /**
+     * @return ipv4 header length in bytes
+     */
+    public int getIpv4HeaderLength() {
+        return (data[l3Offset] & 0x0f) * 4;
+    }
+
+    public int getIpv4TotalLength() {
+        return getShort(l3Offset + 2);
+    }
+
+    /**
+     * @return true if the frame holds less than the ipv4 packet, as the
+     *         switch only sends the head of a buffered packet
+     */
+    public boolean isIpv4Truncated() {
+        return l3Offset + getIpv4TotalLength() > length;
+    }
+
+    public int getIpv4Ttl() {
+        return data[l3Offset + 8] & 0xff;
+    }
+
+    public int getIpv4Protocol() {
+        return data[l3Offset + 9] & 0xff;
+    }
+
+    public int getIpv4Source() {
+        return getInt(l3Offset + 12);
+    }
+
+    public int getIpv4Destination() {
+        return getInt(l3Offset + 16);
+    }
+
+    private int getShort(int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    private int getInt(int offset) {
+        return PacketUtil.getIpv4(data, offset);
+    }
+
+    private long getMac(int offset) {
+        return PacketUtil.getMac(data, offset);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.packet;
+
+import org.opendaylight.router.PacketUtil;
+
+/**
+ * Fixed layout encoder for the ethernet, vlan and arp headers. Every method
+ * writes the header straight into the caller supplied buffer at the given
+ * offset and returns the offset following the written header, so the headers
+ * of a frame can be chained without any intermediate byte arrays.
+ */
+public final class FrameEncoder {
+    public static final int ARP_FRAME_SIZE = FrameDecoder.ETHER_HEADER_SIZE
+            + FrameDecoder.VLAN_HEADER_SIZE
+            + FrameDecoder.ARP_HEADER_SIZE;
+
+    private FrameEncoder() {
+    }
+
+    public static int putEthernet(byte[] buf, int off, long dmac, long smac, int etherType) {
+        putMac(buf, off, dmac);
+        putMac(buf, off + 6, smac);
+        putShort(buf, off + 12, etherType);
+        return off + FrameDecoder.ETHER_HEADER_SIZE;
+    }
+
+    /**
+     * Write the 802.1q tag (without the TPID, which is the ethertype of the
+     * preceding ethernet header).
+     */
+    public static int putVlan(byte[] buf, int off, int pcp, int cfi, int vid, int etherType) {
+        putShort(buf, off, ((pcp & 0x07) << 13) | ((cfi & 0x01) << 12) | (vid & 0x0fff));
+        putShort(buf, off + 2, etherType);
+        return off + FrameDecoder.VLAN_HEADER_SIZE;
+    }
+
+    /**
+     * Write the arp header for ethernet hardware and ipv4 protocol addresses.
+     */
+    public static int putArp(byte[] buf, int off, int operation, long sha, int spa, long tha, int tpa) {
+        putShort(buf, off, FrameDecoder.ARP_HW_TYPE_ETHERNET);
+        putShort(buf, off + 2, FrameDecoder.ETHERTYPE_IPV4);
+        buf[off + 4] = 6; // mac address length
+        buf[off + 5] = 4; // ipv4 address length
+        putShort(buf, off + 6, operation);
+        putMac(buf, off + 8, sha);
+        putInt(buf, off + 14, spa);
+        putMac(buf, off + 18, tha);
+        putInt(buf, off + 24, tpa);
+        return off + FrameDecoder.ARP_HEADER_SIZE;
+    }
+
+    /**
+     * Rewrite the mac addresses and the vlan tag of a vlan tagged frame. The
+     * cfi bit and the encapsulated ethertype are kept as they are.
+     * @param frame vlan tagged frame
+     * @param reuse if true the frame is patched in place, otherwise it's copied once
+     * @return rewritten frame or null if the frame is not vlan tagged
+     */
+    public static byte[] rewrite(byte[] frame, boolean reuse, long dmac, long smac, int pcp, int vid) {
+        byte[] out = copyTaggedFrame(frame, reuse);
+        if(out != null) {
+            putMac(out, 0, dmac);
+            putMac(out, 6, smac);
+            putVlanTci(out, pcp, vid);
+        }
+        return out;
+    }
+
+    private static byte[] copyTaggedFrame(byte[] frame, boolean reuse) {
+        if(frame == null
+                || frame.length < FrameDecoder.ETHER_HEADER_SIZE + FrameDecoder.VLAN_HEADER_SIZE
+                || frame[12] != (byte) 0x81 || frame[13] != 0x00) {
+            return null;
+        }
+        return reuse ? frame : frame.clone();
+    }
+
+    private static void putVlanTci(byte[] buf, int pcp, int vid) {
+        int off = FrameDecoder.ETHER_HEADER_SIZE;
+        int cfi = buf[off] & 0x10;
+        buf[off] = (byte) (((pcp & 0x07) << 5) | cfi | ((vid >>> 8) & 0x0f));
+        buf[off + 1] = (byte) vid;
+    }
+
+    private static void putShort(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >>> 8);
+        buf[off + 1] = (byte) value;
+    }
+
+    private static void putInt(byte[] buf, int off, int value) {
+        PacketUtil.putIpv4(buf, off, value);
+    }
+
+    private static void putMac(byte[] buf, int off, long mac) {
+        PacketUtil.putMac(buf, off, mac);
+    }
+}
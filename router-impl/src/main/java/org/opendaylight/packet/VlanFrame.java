@@ -15,6 +15,11 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.opendaylight.controller.liblldp.BitBufferHelper;
 import org.opendaylight.controller.liblldp.Packet;
 
+/**
+ * @deprecated the field map based serialization is slow on the packet path,
+ * use {@link FrameEncoder} instead.
+ */
+@Deprecated
 public class VlanFrame extends Packet{
     private static final String ETH_TYPE = "eth_type";
     private static final String PRI = "priority";
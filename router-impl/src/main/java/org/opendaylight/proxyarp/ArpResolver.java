@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.proxyarp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Keeps track of the (vlan, ipv4 address) destinations being resolved with
+ * an arp request sent by the controller.
+ *
+ * <p>The first packet to an unknown destination asks for one arp request,
+ * the following ones are parked until the reply is learnt. The queues are
+ * bounded per destination and in total bytes, the packets which don't fit
+ * are dropped. A destination which doesn't answer within the timeout gets
+ * its packets dropped and a negative cache entry, so the packets sent to it
+ * during the negative time are dropped without asking again.
+ *
+ * <p>{@link #expire()} has to be called periodically to time out the
+ * requests and the negative entries.
+ */
+public class ArpResolver {
+    public static final int DEFAULT_QUEUE_LENGTH = 32;
+    public static final long DEFAULT_MAX_BYTES = 4 << 20;
+    public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(3);
+    public static final long DEFAULT_NEGATIVE_TIME = TimeUnit.SECONDS.toMillis(10);
+
+    private static final int MAX_DESTINATIONS = 4096;
+
+    public enum Result {
+        /** new destination, the caller has to send the arp request */
+        REQUEST,
+        /** the request is on its way, the packet is parked */
+        QUEUED,
+        /** the queue is full, the packet is dropped */
+        DROPPED,
+        /** the destination didn't answer recently, the packet is dropped */
+        UNREACHABLE
+    }
+
+    private final int queueLength;
+    private final long maxBytes;
+    private final long timeout;
+    private final long negativeTime;
+
+    // guarded by this
+    private final Map<Long, Pending> pending = new HashMap<>();
+    private final Map<Long, Long> unreachable = new LinkedHashMap<Long, Long>(16, 0.75f, false) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_DESTINATIONS;
+        }
+    };
+    private long queuedBytes;
+    // pending and unreachable destinations, lets the learning path skip the
+    // lock while there are none
+    private volatile int tracked;
+
+    public ArpResolver() {
+        this(DEFAULT_QUEUE_LENGTH, DEFAULT_MAX_BYTES, DEFAULT_TIMEOUT, DEFAULT_NEGATIVE_TIME);
+    }
+
+    /**
+     * @param queueLength maximum number of packets parked per destination
+     * @param maxBytes maximum number of bytes parked over all destinations
+     * @param timeout milliseconds to wait for the arp reply
+     * @param negativeTime milliseconds during which a destination which
+     *        didn't answer is not asked again
+     */
+    public ArpResolver(int queueLength, long maxBytes, long timeout, long negativeTime) {
+        Preconditions.checkArgument(queueLength >= 0, "queue length can't be negative");
+        Preconditions.checkArgument(maxBytes >= 0, "max bytes can't be negative");
+        Preconditions.checkArgument(timeout > 0, "timeout must be positive");
+        Preconditions.checkArgument(negativeTime >= 0, "negative time can't be negative");
+        this.queueLength = queueLength;
+        this.maxBytes = maxBytes;
+        this.timeout = timeout;
+        this.negativeTime = negativeTime;
+    }
+
+    /**
+     * Park the packet until the destination is resolved.
+     * @param packet packet to send once resolved, null if it can't be sent
+     *        later on
+     */
+    public synchronized Result enqueue(int vlan, int ip, byte[] packet) {
+        long key = key(vlan, ip);
+        long now = currentTimeMillis();
+        Pending destination = pending.get(key);
+        Result result = Result.QUEUED;
+        if(destination == null) {
+            Long until = unreachable.get(key);
+            if(until != null) {
+                if(now < until) {
+                    return Result.UNREACHABLE;
+                }
+                unreachable.remove(key);
+            }
+            if(pending.size() >= MAX_DESTINATIONS) {
+                return Result.DROPPED;
+            }
+            destination = new Pending(now);
+            pending.put(key, destination);
+            updateTracked();
+            result = Result.REQUEST;
+        }
+
+        if(packet != null) {
+            if(destination.packets.size() >= queueLength || queuedBytes + packet.length > maxBytes) {
+                return result == Result.REQUEST ? result : Result.DROPPED;
+            }
+            destination.packets.add(packet);
+            queuedBytes += packet.length;
+        }
+        return result;
+    }
+
+    /**
+     * Called when the destination is learnt.
+     * @return packets parked for the destination, in arrival order
+     */
+    public List<byte[]> resolved(int vlan, int ip) {
+        if(tracked == 0) {
+            return Collections.emptyList();
+        }
+        synchronized (this) {
+            long key = key(vlan, ip);
+            unreachable.remove(key);
+            Pending destination = pending.remove(key);
+            updateTracked();
+            return destination == null ? Collections.<byte[]>emptyList() : release(destination);
+        }
+    }
+
+    /**
+     * Drop the packets of the destinations which didn't answer in time and
+     * forget the expired negative entries.
+     * @return number of destinations which timed out
+     */
+    public synchronized int expire() {
+        long now = currentTimeMillis();
+        int expired = 0;
+        for(Iterator<Map.Entry<Long, Pending>> it = pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Pending> entry = it.next();
+            if(now - entry.getValue().requested >= timeout) {
+                it.remove();
+                release(entry.getValue());
+                if(negativeTime > 0) {
+                    unreachable.put(entry.getKey(), now + negativeTime);
+                }
+                expired++;
+            }
+        }
+
+        for(Iterator<Long> it = unreachable.values().iterator(); it.hasNext();) {
+            if(now >= it.next()) {
+                it.remove();
+            }
+        }
+        updateTracked();
+        return expired;
+    }
+
+    public synchronized int getPendingDestinations() {
+        return pending.size();
+    }
+
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    protected long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    // called with the lock held
+    private void updateTracked() {
+        tracked = pending.size() + unreachable.size();
+    }
+
+    // called with the lock held
+    private List<byte[]> release(Pending destination) {
+        List<byte[]> packets = new ArrayList<>(destination.packets);
+        for(byte[] packet : packets) {
+            queuedBytes -= packet.length;
+        }
+        return packets;
+    }
+
+    private static long key(int vlan, int ip) {
+        return ((long) (vlan & 0xfff) << 32) | (ip & 0xffffffffL);
+    }
+
+    private static final class Pending {
+        final long requested;
+        final ArrayDeque<byte[]> packets = new ArrayDeque<>();
+
+        Pending(long requested) {
+            this.requested = requested;
+        }
+    }
+}
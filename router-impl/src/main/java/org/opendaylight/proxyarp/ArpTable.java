@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.proxyarp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Concurrent ARP table keyed by (vlan, ipv4 address).
+ *
+ * <p>Entries are kept in open addressing tables split into lock striped
+ * segments. The key packs the vlan and the ipv4 address into one long and the
+ * value packs the 48 bit mac address with a 16 bit port handle (see
+ * {@link org.opendaylight.router.PortRegistry}), so an entry costs two longs
+ * and lookups never allocate or take a lock.
+ *
+ * <p>Readers rely on the following invariants: a slot is published by writing
+ * the value before the key, a slot once keyed is never re-used for another key
+ * (removal leaves a tombstone which is only dropped when the segment is
+ * rehashed into a new table), and a value of 0 means "no entry".
+ *
+ * <p>The table is bounded: once a segment holds its share of the capacity a
+ * new entry evicts an old one, picked by a CLOCK sweep over the reference bit
+ * set by lookups. The capacity is rounded up to a multiple of the number of
+ * segments, and as the segments fill up unevenly the table may evict before
+ * it holds the whole capacity. Entries which are not learnt again within the aging time
+ * are expired by a {@link TimerWheel}; {@link #expire()} has to be called
+ * periodically to turn the wheel.
+ *
+ * <p>Each entry has one timer on the wheel, an item which tags the key with a
+ * sequence number. The timer of an evicted or removed entry goes stale: it's
+ * skipped when it fires and dropped by a purge once the wheel holds twice as
+ * many timers as the table holds entries.
+ */
+public class ArpTable {
+    public static final long NO_ENTRY = 0L;
+    public static final int DEFAULT_CAPACITY = 1 << 18;
+    public static final long DEFAULT_AGING_TIME = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = -1L;
+    private static final int SEGMENTS = 16;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+    private static final long TICK_MILLIS = 1000;
+    private static final int KEY_BITS = 44;
+    private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+    private static final int TIMER_SEQUENCE_MASK = (1 << (63 - KEY_BITS)) - 1;
+
+    private final Segment[] segments;
+    private final int segmentCapacity;
+    private final long agingTime;
+    private final TimerWheel timerWheel;
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final TimerWheel.Filter liveTimers = new TimerWheel.Filter() {
+        @Override
+        public boolean isLive(long timer, long deadline) {
+            int hash = hash((int) timer);
+            return segmentFor(hash).isTimer(timer, hash);
+        }
+    };
+
+    public ArpTable() {
+        this(DEFAULT_CAPACITY, DEFAULT_AGING_TIME);
+    }
+
+    /**
+     * @param capacity maximum number of entries, rounded up to a multiple of
+     *        16
+     * @param agingTime time in milliseconds after which an entry which was
+     *        not learnt again is removed, 0 disables the aging
+     */
+    public ArpTable(int capacity, long agingTime) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        Preconditions.checkArgument(agingTime >= 0, "aging time can't be negative");
+        this.segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        this.agingTime = agingTime;
+        this.timerWheel = agingTime > 0 ? new TimerWheel(toTick(currentTimeMillis())) : null;
+        segments = new Segment[SEGMENTS];
+        for(int i=0; i<SEGMENTS; i++) {
+            segments[i] = new Segment(INITIAL_SEGMENT_CAPACITY);
+        }
+    }
+
+    public static long macOf(long entry) {
+        return entry >>> 16;
+    }
+
+    public static int portOf(long entry) {
+        return (int) (entry & 0xffff);
+    }
+
+    /**
+     * @return packed entry for the (vlan, ip) or {@link #NO_ENTRY}
+     */
+    public long get(int vlan, int ip) {
+        int hash = hash(ip);
+        return segmentFor(hash).get(key(vlan, ip), hash);
+    }
+
+    /**
+     * Find the vlan on which the ip address was learnt.
+     * @return vlan id or -1 if the ip is not known on any vlan
+     */
+    public int lookupVlan(int ip) {
+        int hash = hash(ip);
+        return segmentFor(hash).lookupVlan(ip, hash);
+    }
+
+    /**
+     * Add or update the entry, which also restarts its aging.
+     * @param port port handle, must be in the range 1..65535
+     * @return true if the entry was added or its mac/port changed
+     */
+    public boolean put(int vlan, int ip, long mac, int port) {
+        if(ip == 0 || port <= 0 || port > 0xffff) {
+            return false;
+        }
+        int hash = hash(ip);
+        long key = key(vlan, ip);
+        long now = currentTimeMillis();
+        Segment segment = segmentFor(hash);
+        long timer = segment.put(key, hash, value(mac, port), now);
+        if(timer < 0) {
+            return false;
+        }
+        if(timer > 0) {
+            timerWheel.schedule(timer, deadlineTick(now));
+            timerWheel.purge(2 * getCapacity(), liveTimers);
+        }
+        return true;
+    }
+
+    /**
+     * Add or update the entry unless it's already there with the same mac
+     * and port. The check doesn't take a lock nor restart the aging of an
+     * unchanged entry, so it's cheap enough to run for every punted packet.
+     * @return true if the entry was added or its mac/port changed
+     */
+    public boolean learn(int vlan, int ip, long mac, int port) {
+        if(get(vlan, ip) == value(mac, port)) {
+            return false;
+        }
+        return put(vlan, ip, mac, port);
+    }
+
+    public boolean remove(int vlan, int ip) {
+        int hash = hash(ip);
+        return segmentFor(hash).remove(key(vlan, ip), hash);
+    }
+
+    /**
+     * Remove the entries whose aging time is over.
+     * @return number of expired entries
+     */
+    public int expire() {
+        if(timerWheel == null) {
+            return 0;
+        }
+        final long now = currentTimeMillis();
+        final int[] expired = new int[1];
+        timerWheel.advance(toTick(now), new TimerWheel.ExpiryHandler() {
+            @Override
+            public void expired(long timer, long deadline) {
+                int hash = hash((int) timer);
+                long next = segmentFor(hash).expire(timer, hash, now);
+                if(next > 0) {
+                    timerWheel.schedule(timer, next);
+                } else if(next == 0) {
+                    expired[0]++;
+                }
+            }
+        });
+        expirations.addAndGet(expired[0]);
+        return expired[0];
+    }
+
+    /**
+     * @return maximum number of entries, the capacity given to the
+     *         constructor rounded up to a multiple of the number of segments
+     */
+    public int getCapacity() {
+        return segmentCapacity * SEGMENTS;
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of timers on the aging wheel, including the stale ones
+     *         of the entries which went away before their deadline
+     */
+    public int getTimers() {
+        return timerWheel == null ? 0 : timerWheel.size();
+    }
+
+    protected long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    public int size() {
+        int size = 0;
+        for(Segment segment : segments) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "ArpTable [size=" + size() + ", expirations=" + expirations.get()
+                + ", evictions=" + evictions.get() + "]";
+    }
+
+    private static long toTick(long millis) {
+        return millis / TICK_MILLIS;
+    }
+
+    private long deadlineTick(long lastSeen) {
+        return toTick(lastSeen + agingTime) + 1;
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 24) & (SEGMENTS - 1)];
+    }
+
+    private static long value(long mac, int port) {
+        return ((mac & 0xffffffffffffL) << 16) | (port & 0xffff);
+    }
+
+    private static long key(int vlan, int ip) {
+        return ((long) (vlan & 0xfff) << 32) | (ip & 0xffffffffL);
+    }
+
+    // all the vlans of one ip share the probe sequence, see lookupVlan
+    private static int hash(int ip) {
+        int h = ip * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicLongArray values;
+        // only accessed under the segment lock
+        final long[] lastSeen;
+        // the timer item tracking the entry, 0 without aging
+        final long[] timers;
+        // set by the lock free readers, a lost update only costs a clock round
+        final byte[] referenced;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicLongArray(capacity);
+            lastSeen = new long[capacity];
+            timers = new long[capacity];
+            referenced = new byte[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private final class Segment {
+        volatile Table table;
+        // written under the segment lock
+        volatile int count;
+        int used;
+        int clockHand;
+        int timerSequence;
+
+        Segment(int capacity) {
+            table = new Table(capacity);
+        }
+
+        long get(long key, int hash) {
+            Table t = table;
+            for(int i = hash & t.mask, n = 0; n <= t.mask; i = (i + 1) & t.mask, n++) {
+                long k = t.keys.get(i);
+                if(k == key) {
+                    t.referenced[i] = 1;
+                    return t.values.get(i);
+                } else if(k == EMPTY) {
+                    break;
+                }
+            }
+            return NO_ENTRY;
+        }
+
+        int lookupVlan(int ip, int hash) {
+            Table t = table;
+            for(int i = hash & t.mask, n = 0; n <= t.mask; i = (i + 1) & t.mask, n++) {
+                long k = t.keys.get(i);
+                if(k == EMPTY) {
+                    break;
+                } else if(k != TOMBSTONE && (int) k == ip && t.values.get(i) != NO_ENTRY) {
+                    return (int) (k >>> 32);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return -1 if nothing changed, 0 if the entry was changed or
+         *         added without aging, otherwise the timer item the new
+         *         entry has to be scheduled with on the timer wheel
+         */
+        synchronized long put(long key, int hash, long value, long now) {
+            Table t = table;
+            int slot = find(t, key, hash);
+            if(slot >= 0) {
+                t.lastSeen[slot] = now;
+                return t.values.getAndSet(slot, value) != value ? 0 : -1;
+            }
+
+            if(count >= segmentCapacity) {
+                evict(t);
+            }
+            if((used + 1) * 4 > (t.mask + 1) * 3) {
+                t = rehash(t);
+            }
+            for(int i = hash & t.mask; ; i = (i + 1) & t.mask) {
+                if(t.keys.get(i) == EMPTY) {
+                    // a stale timer of the key never matches the new entry
+                    long timer = timerWheel == null ? 0
+                            : ((long) (++timerSequence & TIMER_SEQUENCE_MASK) << KEY_BITS) | key;
+                    t.lastSeen[i] = now;
+                    t.timers[i] = timer;
+                    t.referenced[i] = 0;
+                    t.values.set(i, value);
+                    t.keys.set(i, key);
+                    used++;
+                    count++;
+                    return timer;
+                }
+            }
+        }
+
+        synchronized boolean remove(long key, int hash) {
+            Table t = table;
+            int slot = find(t, key, hash);
+            if(slot < 0) {
+                return false;
+            }
+            clear(t, slot);
+            return true;
+        }
+
+        /**
+         * Called by the timer wheel when the deadline of the entry is reached.
+         * @return 0 if the entry got expired, the next deadline if it was
+         *         learnt again in the meantime or -1 if the timer is stale
+         */
+        synchronized long expire(long timer, int hash, long now) {
+            Table t = table;
+            int slot = find(t, timer & KEY_MASK, hash);
+            if(slot < 0 || t.timers[slot] != timer) {
+                // removed, or re-added and tracked by a newer timer
+                return -1;
+            }
+            if(now - t.lastSeen[slot] >= agingTime) {
+                clear(t, slot);
+                return 0;
+            }
+            return deadlineTick(t.lastSeen[slot]);
+        }
+
+        // called by the timer wheel purge, with the wheel lock held
+        synchronized boolean isTimer(long timer, int hash) {
+            Table t = table;
+            int slot = find(t, timer & KEY_MASK, hash);
+            return slot >= 0 && t.timers[slot] == timer;
+        }
+
+        // CLOCK: skip and clear the referenced entries, evict the first other
+        // one. After two rounds, which the readers can only cause by setting
+        // the bits again, the entry under the hand goes anyway so the segment
+        // never holds more than its capacity.
+        private void evict(Table t) {
+            int rounds = 2 * (t.mask + 1);
+            for(int n=0; ; n++) {
+                int i = clockHand;
+                clockHand = (clockHand + 1) & t.mask;
+                long k = t.keys.get(i);
+                if(k == EMPTY || k == TOMBSTONE) {
+                    continue;
+                }
+                if(t.referenced[i] != 0 && n < rounds) {
+                    t.referenced[i] = 0;
+                    continue;
+                }
+                clear(t, i);
+                evictions.incrementAndGet();
+                return;
+            }
+        }
+
+        private void clear(Table t, int slot) {
+            t.values.set(slot, NO_ENTRY);
+            t.keys.set(slot, TOMBSTONE);
+            count--;
+        }
+
+        private int find(Table t, long key, int hash) {
+            for(int i = hash & t.mask, n = 0; n <= t.mask; i = (i + 1) & t.mask, n++) {
+                long k = t.keys.get(i);
+                if(k == key) {
+                    return i;
+                } else if(k == EMPTY) {
+                    break;
+                }
+            }
+            return -1;
+        }
+
+        // rebuild the table without the tombstones, growing it if needed
+        private Table rehash(Table old) {
+            int capacity = old.mask + 1;
+            while((count + 1) * 2 > capacity) {
+                capacity <<= 1;
+            }
+            Table t = new Table(capacity);
+            for(int i=0; i<=old.mask; i++) {
+                long k = old.keys.get(i);
+                if(k != EMPTY && k != TOMBSTONE) {
+                    for(int j = hash((int) k) & t.mask; ; j = (j + 1) & t.mask) {
+                        if(t.keys.get(j) == EMPTY) {
+                            t.lastSeen[j] = old.lastSeen[i];
+                            t.timers[j] = old.timers[i];
+                            t.referenced[j] = old.referenced[i];
+                            t.values.set(j, old.values.get(i));
+                            t.keys.set(j, k);
+                            break;
+                        }
+                    }
+                }
+            }
+            used = count;
+            clockHand = 0;
+            table = t;
+            return t;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.proxyarp;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timer wheel for primitive long items. Scheduling and expiring
+ * an item are O(1); items scheduled further than the lowest level are
+ * cascaded down as the wheel turns. Deadlines are given in ticks, the
+ * caller decides how long a tick is.
+ */
+public class TimerWheel {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    public interface ExpiryHandler {
+        void expired(long item, long deadline);
+    }
+
+    public interface Filter {
+        boolean isLive(long item, long deadline);
+    }
+
+    private final Bucket[][] wheel = new Bucket[LEVELS][SLOTS];
+    private long currentTick;
+    private int size;
+
+    public TimerWheel(long startTick) {
+        for(int level=0; level<LEVELS; level++) {
+            for(int slot=0; slot<SLOTS; slot++) {
+                wheel[level][slot] = new Bucket();
+            }
+        }
+        currentTick = startTick;
+    }
+
+    public synchronized void schedule(long item, long deadline) {
+        add(item, Math.max(deadline, currentTick + 1));
+        size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Turn the wheel up to the given tick and hand over the expired items.
+     * The handler is called without holding the wheel lock, so it may
+     * schedule new items.
+     */
+    public void advance(long tick, ExpiryHandler handler) {
+        Bucket expired = new Bucket();
+        synchronized (this) {
+            while(currentTick < tick) {
+                currentTick++;
+                cascade();
+                Bucket bucket = wheel[0][(int) (currentTick & MASK)];
+                expired.addAll(bucket);
+                size -= bucket.size / 2;
+                bucket.clear();
+            }
+        }
+        for(int i=0; i<expired.size; i+=2) {
+            handler.expired(expired.data[i], expired.data[i + 1]);
+        }
+    }
+
+    /**
+     * Drop the items which are no longer live once the wheel holds more than
+     * the given number of items, so the timers of the items which went away
+     * before their deadline don't pile up. The filter is called with the
+     * wheel lock held.
+     * @return number of dropped items
+     */
+    public synchronized int purge(int maxSize, Filter filter) {
+        if(size <= maxSize) {
+            return 0;
+        }
+        int dropped = 0;
+        for(Bucket[] level : wheel) {
+            for(Bucket bucket : level) {
+                dropped += bucket.retain(filter);
+            }
+        }
+        size -= dropped;
+        return dropped;
+    }
+
+    // move the items of the higher levels whose slot comes up on this tick
+    private void cascade() {
+        for(int level=1; level<LEVELS; level++) {
+            if((currentTick & ((1L << (BITS * level)) - 1)) != 0) {
+                break;
+            }
+            Bucket bucket = wheel[level][(int) ((currentTick >>> (BITS * level)) & MASK)];
+            long[] data = Arrays.copyOf(bucket.data, bucket.size);
+            bucket.clear();
+            for(int i=0; i<data.length; i+=2) {
+                add(data[i], data[i + 1]);
+            }
+        }
+    }
+
+    private void add(long item, long deadline) {
+        long delta = deadline - currentTick;
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        // beyond the range of the wheel, park in the last level and re-cascade
+        long slotTick = level == LEVELS - 1 && delta >= (1L << (BITS * LEVELS))
+                ? currentTick + (1L << (BITS * LEVELS)) - 1 : deadline;
+        wheel[level][(int) ((slotTick >>> (BITS * level)) & MASK)].add(item, deadline);
+    }
+
+    private static final class Bucket {
+        long[] data = new long[8];
+        int size;
+
+        void add(long item, long deadline) {
+            if(size + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = item;
+            data[size++] = deadline;
+        }
+
+        void addAll(Bucket other) {
+            for(int i=0; i<other.size; i+=2) {
+                add(other.data[i], other.data[i + 1]);
+            }
+        }
+
+        // keep the live items in place, returns the number of dropped ones
+        int retain(Filter filter) {
+            int n = 0;
+            for(int i=0; i<size; i+=2) {
+                if(filter.isLive(data[i], data[i + 1])) {
+                    data[n++] = data[i];
+                    data[n++] = data[i + 1];
+                }
+            }
+            int dropped = (size - n) / 2;
+            size = n;
+            return dropped;
+        }
+
+        void clear() {
+            if(data.length > 64) {
+                data = new long[8];
+            }
+            size = 0;
+        }
+    }
+}
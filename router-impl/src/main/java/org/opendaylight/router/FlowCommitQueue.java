@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.router;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.ProcessFlatBatchInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.ProcessFlatBatchOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.SalFlatBatchService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.Batch;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.output.BatchFailure;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.BatchBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.FlatBatchAddFlowCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.FlatBatchRemoveFlowCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.flat.batch.add.flow._case.FlatBatchAddFlow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.flat.batch.add.flow._case.FlatBatchAddFlowBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.flat.batch.remove.flow._case.FlatBatchRemoveFlow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.flat.batch.remove.flow._case.FlatBatchRemoveFlowBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Collects the flow adds and removes per switch and sends them as one flat
+ * batch, either when the batch is full or when the commit window since the
+ * first queued change is over.
+ *
+ * <p>Changes to the same flow id within a window are coalesced: the last one
+ * wins. The callers keep the id of a flow for as long as they replace it with
+ * flows of the same match, so an add followed by a remove only cancels out
+ * when no change of the id was ever sent to the switch; otherwise an earlier
+ * version of the flow may be installed and the remove replaces the add. The
+ * future returned for a change completes with the outcome of the change
+ * which finally got sent; it's cancelled if the change cancelled out or was
+ * replaced by a remove.
+ *
+ * <p>The flows themselves don't ask for a barrier, only the last change of a
+ * batch does, so the batch is answered once the switch applied all of it.
+ *
+ * <p>The scheduler only times the commit windows and the rpc timeouts, the
+ * batches are built, sent and answered on the executor.
+ */
+public class FlowCommitQueue implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(FlowCommitQueue.class);
+
+    public static final long DEFAULT_WINDOW = 10;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final SalFlatBatchService flatBatchService;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final long window;
+    private final int maxBatchSize;
+    private final ConcurrentMap<NodeId, SwitchQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Commit on the thread which fires the commit window.
+     * @param window commit window in milliseconds
+     * @param maxBatchSize number of changes which triggers the commit right away
+     */
+    public FlowCommitQueue(SalFlatBatchService flatBatchService, ScheduledExecutorService scheduler,
+            long window, int maxBatchSize) {
+        this(flatBatchService, scheduler, MoreExecutors.directExecutor(), window, maxBatchSize);
+    }
+
+    /**
+     * @param executor executor of the commits, the scheduler only fires the
+     *        commit windows
+     * @param window commit window in milliseconds
+     * @param maxBatchSize number of changes which triggers the commit right away
+     */
+    public FlowCommitQueue(SalFlatBatchService flatBatchService, ScheduledExecutorService scheduler,
+            Executor executor, long window, int maxBatchSize) {
+        this.flatBatchService = flatBatchService;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.window = window;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    public ListenableFuture<Void> addFlow(NodeId nodeId, Flow flow) {
+        return queueFor(nodeId).offer(flow, true);
+    }
+
+    public ListenableFuture<Void> removeFlow(NodeId nodeId, Flow flow) {
+        return queueFor(nodeId).offer(flow, false);
+    }
+
+    /**
+     * Drop the pending changes of a switch which left.
+     */
+    public void clear(NodeId nodeId) {
+        SwitchQueue queue = queues.remove(nodeId);
+        if(queue != null) {
+            queue.cancel();
+        }
+    }
+
+    /**
+     * Commit the pending changes of all the switches.
+     */
+    public void flush() {
+        for(SwitchQueue queue : queues.values()) {
+            queue.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        queues.clear();
+    }
+
+    private SwitchQueue queueFor(NodeId nodeId) {
+        SwitchQueue queue = queues.get(nodeId);
+        if(queue == null) {
+            SwitchQueue newQueue = new SwitchQueue(nodeId);
+            queue = queues.putIfAbsent(nodeId, newQueue);
+            if(queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    private final class SwitchQueue implements Runnable {
+        private final NodeId nodeId;
+        private final NodeRef nodeRef;
+        // guarded by this
+        private Map<FlowId, Change> pending = new LinkedHashMap<>();
+        // last change sent of the flows which may be on the switch, a flow
+        // is dropped once its remove is acknowledged
+        private final Map<FlowId, Change> sent = new HashMap<>();
+        private boolean scheduled;
+        private final Runnable commitOnExecutor = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(SwitchQueue.this);
+                } catch (RejectedExecutionException e) {
+                    flush();
+                }
+            }
+        };
+
+        SwitchQueue(NodeId nodeId) {
+            this.nodeId = nodeId;
+            this.nodeRef = new NodeRef(InstanceIdentifier.create(Nodes.class)
+                    .child(Node.class, new NodeKey(nodeId)));
+        }
+
+        ListenableFuture<Void> offer(Flow flow, boolean add) {
+            boolean full;
+            Change change = new Change(flow, add);
+            synchronized (this) {
+                Change previous = pending.remove(flow.getId());
+                if(previous != null) {
+                    if(!add && previous.add) {
+                        previous.cancel();
+                        if(!sent.containsKey(flow.getId())) {
+                            // never sent, nothing to remove
+                            change.cancel();
+                            return change.future;
+                        }
+                    } else {
+                        change.attach(previous);
+                    }
+                }
+                pending.put(flow.getId(), change);
+                full = pending.size() >= maxBatchSize;
+                if(!full && !scheduled) {
+                    scheduled = true;
+                    try {
+                        scheduler.schedule(commitOnExecutor, window, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        scheduled = false;
+                        full = true;
+                    }
+                }
+            }
+            if(full) {
+                flush();
+            }
+            return change.future;
+        }
+
+        synchronized void cancel() {
+            for(Change change : pending.values()) {
+                change.cancel();
+            }
+            pending.clear();
+        }
+
+        @Override
+        public void run() {
+            flush();
+        }
+
+        void flush() {
+            Map<FlowId, Change> changes;
+            synchronized (this) {
+                scheduled = false;
+                if(pending.isEmpty()) {
+                    return;
+                }
+                changes = pending;
+                pending = new LinkedHashMap<>();
+                sent.putAll(changes);
+            }
+            submit(changes);
+        }
+
+        private void succeeded(Change change) {
+            if(!change.add) {
+                synchronized (this) {
+                    if(sent.get(change.flow.getId()) == change) {
+                        sent.remove(change.flow.getId());
+                    }
+                }
+            }
+            change.future.set(null);
+        }
+
+        private void submit(Map<FlowId, Change> changes) {
+            final List<Change> ordered = new ArrayList<>(changes.values());
+            List<Batch> batches = new ArrayList<>();
+            List<FlatBatchAddFlow> adds = new ArrayList<>();
+            List<FlatBatchRemoveFlow> removes = new ArrayList<>();
+            int order = 0;
+            // consecutive changes of the same kind share one batch step
+            for(Change change : ordered) {
+                boolean last = order == ordered.size() - 1;
+                if(change.add) {
+                    if(!removes.isEmpty()) {
+                        batches.add(removeBatch(batches.size(), removes));
+                        removes = new ArrayList<>();
+                    }
+                    adds.add(new FlatBatchAddFlowBuilder(change.flow)
+                            .setFlowId(change.flow.getId())
+                            .setBarrier(last)
+                            .setBatchOrder(order++)
+                            .build());
+                } else {
+                    if(!adds.isEmpty()) {
+                        batches.add(addBatch(batches.size(), adds));
+                        adds = new ArrayList<>();
+                    }
+                    removes.add(new FlatBatchRemoveFlowBuilder(change.flow)
+                            .setFlowId(change.flow.getId())
+                            .setBarrier(last)
+                            .setBatchOrder(order++)
+                            .build());
+                }
+            }
+            if(!adds.isEmpty()) {
+                batches.add(addBatch(batches.size(), adds));
+            }
+            if(!removes.isEmpty()) {
+                batches.add(removeBatch(batches.size(), removes));
+            }
+
+            LOG.debug("sending {} flow changes to {}", changes.size(), nodeId.getValue());
+            final int size = changes.size();
+            Future<RpcResult<ProcessFlatBatchOutput>> future = flatBatchService.processFlatBatch(
+                    new ProcessFlatBatchInputBuilder()
+                    .setNode(nodeRef)
+                    .setBatch(batches)
+                    .setExitOnFirstError(false)
+                    .build());
+            ListenableFuture<RpcResult<ProcessFlatBatchOutput>> answer = RpcFutures.withTimeout(
+                    RpcFutures.listen(future, scheduler),
+                    RpcFutures.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS, scheduler);
+            Futures.addCallback(answer,
+                    new FutureCallback<RpcResult<ProcessFlatBatchOutput>>() {
+
+                @Override
+                public void onSuccess(RpcResult<ProcessFlatBatchOutput> result) {
+                    if(result.isSuccessful()) {
+                        for(Change change : ordered) {
+                            succeeded(change);
+                        }
+                        return;
+                    }
+                    LOG.warn("flow batch of {} changes failed on {} : {}", size, nodeId.getValue(),
+                            result.getErrors());
+                    ProcessFlatBatchOutput output = result.getResult();
+                    if(output == null || output.getBatchFailure() == null) {
+                        failAll(new IllegalStateException("flow batch failed: " + result.getErrors()));
+                        return;
+                    }
+                    // the failures point to the changes by their batch order
+                    boolean[] failed = new boolean[ordered.size()];
+                    for(BatchFailure failure : output.getBatchFailure()) {
+                        Integer order = failure.getBatchOrder();
+                        if(order != null && order >= 0 && order < failed.length) {
+                            failed[order] = true;
+                        }
+                    }
+                    for(int i=0; i<failed.length; i++) {
+                        if(failed[i]) {
+                            ordered.get(i).future.setException(
+                                    new IllegalStateException("flow change failed on " + nodeId.getValue()));
+                        } else {
+                            succeeded(ordered.get(i));
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    LOG.warn("flow batch of {} changes failed on {}", size, nodeId.getValue(), t);
+                    failAll(t);
+                }
+
+                private void failAll(Throwable t) {
+                    for(Change change : ordered) {
+                        change.future.setException(t);
+                    }
+                }
+            }, executor);
+        }
+
+        private Batch addBatch(int batchOrder, List<FlatBatchAddFlow> adds) {
+            return new BatchBuilder()
+                    .setBatchOrder(batchOrder)
+                    .setBatchChoice(new FlatBatchAddFlowCaseBuilder().setFlatBatchAddFlow(adds).build())
+                    .build();
+        }
+
+        private Batch removeBatch(int batchOrder, List<FlatBatchRemoveFlow> removes) {
+            return new BatchBuilder()
+                    .setBatchOrder(batchOrder)
+                    .setBatchChoice(new FlatBatchRemoveFlowCaseBuilder().setFlatBatchRemoveFlow(removes).build())
+                    .build();
+        }
+    }
+
+    private static final class Change {
+        final Flow flow;
+        final boolean add;
+        final SettableFuture<Void> future = SettableFuture.create();
+
+        Change(Flow flow, boolean add) {
+            this.flow = flow;
+            this.add = add;
+        }
+
+        // complete the future of the replaced change together with this one
+        void attach(final Change previous) {
+            Futures.addCallback(future, new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    previous.future.set(null);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if(future.isCancelled()) {
+                        previous.cancel();
+                    } else {
+                        previous.future.setException(t);
+                    }
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        void cancel() {
+            future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.router;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.opendaylight.controller.md.sal.binding.api.DataChangeListener;
+import org.opendaylight.controller.md.sal.common.api.data.AsyncDataChangeEvent;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.Action;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnectorKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yangtools.yang.binding.DataObject;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory view of the switches and ports of the operational inventory,
+ * kept up to date by listening to the node and node connector changes. The
+ * packet path gets the identifiers of a switch or a port from here instead
+ * of reading the datastore.
+ *
+ * <p>Every port is interned once: its record holds the pre-built instance
+ * identifier and ref, the port number and the integer handle stored in the
+ * address table. A port is found by its id, by its switch and number or by
+ * its handle without building or hashing an instance identifier. The
+ * records of a switch are dropped when it disconnects, so its handles find
+ * no port until it reconnects. The handles stay with the port ids, a port
+ * which comes back gets its old handle (see {@link PortRegistry} for the
+ * limit on the number of handles).
+ *
+ * <p>A switch or a port which isn't known yet, because its packets raced
+ * with the inventory notification, gets its record built on the first
+ * lookup.
+ */
+public class InventoryCache implements DataChangeListener {
+    private static final Logger LOG = LoggerFactory.getLogger(InventoryCache.class);
+    // ports with a higher number are only found by id
+    private static final int MAX_INDEXED_PORT = 4096;
+
+    public static final InstanceIdentifier<NodeConnector> NODE_CONNECTOR_IID = InstanceIdentifier
+            .create(Nodes.class).child(Node.class).child(NodeConnector.class);
+
+    private final ConcurrentMap<NodeId, SwitchRecord> switches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<NodeConnectorId, PortRecord> ports = new ConcurrentHashMap<>();
+    private final PortRegistry handles = new PortRegistry();
+    private final AtomicReferenceArray<PortRecord> portsByHandle =
+            new AtomicReferenceArray<>(PortRegistry.MAX_PORTS + 1);
+
+    @Override
+    public void onDataChanged(AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> change) {
+        for(Map.Entry<InstanceIdentifier<?>, DataObject> created : change.getCreatedData().entrySet()) {
+            InstanceIdentifier<?> iid = created.getKey();
+            NodeKey nodeKey = iid.firstKeyOf(Node.class);
+            if(nodeKey == null) {
+                continue;
+            }
+            NodeConnectorKey portKey = iid.firstKeyOf(NodeConnector.class);
+            if(portKey == null) {
+                getSwitch(nodeKey.getId());
+            } else if(!ports.containsKey(portKey.getId())) {
+                addPort(nodeKey.getId(), portKey.getId());
+            }
+        }
+
+        for(InstanceIdentifier<?> removed : change.getRemovedPaths()) {
+            NodeKey nodeKey = removed.firstKeyOf(Node.class);
+            if(nodeKey == null) {
+                continue;
+            }
+            if(Node.class.equals(removed.getTargetType())) {
+                removeSwitch(nodeKey.getId());
+            } else if(NodeConnector.class.equals(removed.getTargetType())) {
+                removePort(removed.firstKeyOf(NodeConnector.class).getId());
+            }
+        }
+    }
+
+    /**
+     * @return record of the switch, built if it isn't known yet
+     */
+    public SwitchRecord getSwitch(NodeId nodeId) {
+        SwitchRecord switchRecord = switches.get(nodeId);
+        if(switchRecord == null) {
+            SwitchRecord newRecord = new SwitchRecord(nodeId);
+            switchRecord = switches.putIfAbsent(nodeId, newRecord);
+            if(switchRecord == null) {
+                switchRecord = newRecord;
+            }
+        }
+        return switchRecord;
+    }
+
+    /**
+     * @param portId id of the port, the id of its switch followed by
+     *        ':' and the port number
+     * @return record of the port, built if it isn't known yet
+     */
+    public PortRecord getPort(NodeConnectorId portId) {
+        PortRecord port = ports.get(portId);
+        if(port == null) {
+            String value = portId.getValue();
+            int separator = value.lastIndexOf(':');
+            port = addPort(new NodeId(separator < 0 ? value : value.substring(0, separator)), portId);
+        }
+        return port;
+    }
+
+    /**
+     * @return record of the port of the switch, built if it isn't known yet
+     */
+    public PortRecord getPort(SwitchRecord switchRecord, int number) {
+        PortRecord[] indexed = switchRecord.portsByNumber;
+        if(number >= 0 && number < indexed.length && indexed[number] != null) {
+            return indexed[number];
+        }
+        return getPort(new NodeConnectorId(switchRecord.id.getValue() + ":" + number));
+    }
+
+    /**
+     * @return record of the port with the handle, null if the handle is
+     *         unknown or the switch of the port is disconnected
+     */
+    public PortRecord getPort(int handle) {
+        if(handle <= 0 || handle > PortRegistry.MAX_PORTS) {
+            return null;
+        }
+        return portsByHandle.get(handle);
+    }
+
+    /**
+     * @return number of the switches in the cache
+     */
+    public int size() {
+        return switches.size();
+    }
+
+    private synchronized PortRecord addPort(NodeId nodeId, NodeConnectorId portId) {
+        PortRecord port = ports.get(portId);
+        if(port != null) {
+            return port;
+        }
+        SwitchRecord switchRecord = getSwitch(nodeId);
+        port = new PortRecord(switchRecord, portId, handles.intern(portId));
+        ports.put(portId, port);
+        switchRecord.ports.put(portId, port);
+        if(port.number >= 0 && port.number < MAX_INDEXED_PORT) {
+            PortRecord[] indexed = switchRecord.portsByNumber;
+            if(port.number >= indexed.length) {
+                indexed = Arrays.copyOf(indexed, port.number + 1);
+            } else {
+                indexed = indexed.clone();
+            }
+            indexed[port.number] = port;
+            switchRecord.portsByNumber = indexed;
+        }
+        if(port.handle != 0) {
+            portsByHandle.set(port.handle, port);
+        }
+        return port;
+    }
+
+    private synchronized void removeSwitch(NodeId nodeId) {
+        SwitchRecord switchRecord = switches.remove(nodeId);
+        if(switchRecord == null) {
+            return;
+        }
+        LOG.debug("switch {} removed from the inventory cache", nodeId.getValue());
+        for(PortRecord port : switchRecord.ports.values()) {
+            forget(port);
+        }
+    }
+
+    private synchronized void removePort(NodeConnectorId portId) {
+        PortRecord port = ports.get(portId);
+        if(port == null) {
+            return;
+        }
+        SwitchRecord switchRecord = port.switchRecord;
+        switchRecord.ports.remove(portId);
+        PortRecord[] indexed = switchRecord.portsByNumber;
+        if(port.number >= 0 && port.number < indexed.length && indexed[port.number] == port) {
+            indexed = indexed.clone();
+            indexed[port.number] = null;
+            switchRecord.portsByNumber = indexed;
+        }
+        forget(port);
+    }
+
+    // called with the lock held
+    private void forget(PortRecord port) {
+        ports.remove(port.id, port);
+        if(port.handle != 0) {
+            portsByHandle.compareAndSet(port.handle, port, null);
+        }
+    }
+
+    /**
+     * Identifiers of a switch and its known ports.
+     */
+    public static final class SwitchRecord {
+        private final NodeId id;
+        private final InstanceIdentifier<Node> iid;
+        private final NodeRef ref;
+        // written with the cache lock held
+        private final Map<NodeConnectorId, PortRecord> ports = new ConcurrentHashMap<>();
+        private volatile PortRecord[] portsByNumber = new PortRecord[0];
+        private volatile FloodActions floodActions;
+
+        SwitchRecord(NodeId id) {
+            this.id = id;
+            this.iid = InstanceIdentifier.create(Nodes.class).child(Node.class, new NodeKey(id));
+            this.ref = new NodeRef(iid);
+        }
+
+        public NodeId getId() {
+            return id;
+        }
+
+        public InstanceIdentifier<Node> getIid() {
+            return iid;
+        }
+
+        public NodeRef getRef() {
+            return ref;
+        }
+
+        /**
+         * @return actions flooding a packet on the vlan of the switch, null
+         *         if they weren't cached for the sub-interface index
+         */
+        public List<Action> getFloodActions(SubInterfaceIndex index, int vlan) {
+            FloodActions cached = floodActions;
+            return cached != null && cached.index == index ? cached.byVlan.get(vlan & 0xfff) : null;
+        }
+
+        /**
+         * Cache the flood actions of the vlan, built from the sub-interface
+         * index. The actions cached for another index are dropped.
+         */
+        public void setFloodActions(SubInterfaceIndex index, int vlan, List<Action> actions) {
+            FloodActions cached = floodActions;
+            if(cached == null || cached.index != index) {
+                cached = new FloodActions(index);
+                floodActions = cached;
+            }
+            cached.byVlan.set(vlan & 0xfff, actions);
+        }
+
+        @Override
+        public String toString() {
+            return id.getValue();
+        }
+    }
+
+    // flood actions by vlan, valid for the index they were built from
+    private static final class FloodActions {
+        final SubInterfaceIndex index;
+        final AtomicReferenceArray<List<Action>> byVlan = new AtomicReferenceArray<>(4096);
+
+        FloodActions(SubInterfaceIndex index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Identifiers of a switch port.
+     */
+    public static final class PortRecord {
+        private final SwitchRecord switchRecord;
+        private final NodeConnectorId id;
+        private final InstanceIdentifier<NodeConnector> iid;
+        private final NodeConnectorRef ref;
+        private final int number;
+        private final int handle;
+
+        PortRecord(SwitchRecord switchRecord, NodeConnectorId id, int handle) {
+            this.switchRecord = switchRecord;
+            this.id = id;
+            this.iid = switchRecord.iid.child(NodeConnector.class, new NodeConnectorKey(id));
+            this.ref = new NodeConnectorRef(iid);
+            this.number = parseNumber(id.getValue());
+            this.handle = handle;
+        }
+
+        public SwitchRecord getSwitch() {
+            return switchRecord;
+        }
+
+        public NodeConnectorId getId() {
+            return id;
+        }
+
+        public InstanceIdentifier<NodeConnector> getIid() {
+            return iid;
+        }
+
+        public NodeConnectorRef getRef() {
+            return ref;
+        }
+
+        /**
+         * @return openflow port number, -1 for a reserved port like LOCAL
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return handle of the port, 0 if all the handles are in use
+         */
+        public int getHandle() {
+            return handle;
+        }
+
+        @Override
+        public String toString() {
+            return id.getValue();
+        }
+
+        private static int parseNumber(String id) {
+            try {
+                return Integer.parseInt(id.substring(id.lastIndexOf(':') + 1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.router;
+
+/**
+ * Longest prefix match table for ipv4 addresses.
+ *
+ * <p>The table is a multibit trie with a stride of 8 bits, so a lookup takes
+ * at most four array accesses. Prefixes whose length is not a multiple of the
+ * stride are expanded over the covered slots of their level; every slot keeps
+ * the length of the prefix which owns it so a shorter prefix never overwrites
+ * a longer one, whatever the insertion order.
+ *
+ * <p>The table is built once and then only read, it's meant to be published
+ * as part of an immutable snapshot.
+ */
+public class Ipv4RoutingTable<T> {
+    private static final int STRIDE = 8;
+    private static final int SLOTS = 1 << STRIDE;
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * Add the route, replacing a route with the same prefix.
+     * @param prefix ipv4 address, the bits beyond the prefix length are ignored
+     * @param length prefix length 0..32
+     */
+    public void add(int prefix, int length, T route) {
+        if(length < 0 || length > 32) {
+            throw new IllegalArgumentException("invalid prefix length " + length);
+        }
+        if(route == null) {
+            throw new NullPointerException("route");
+        }
+        prefix = PacketUtil.ipv4Network(prefix, length);
+
+        Node node = root;
+        int shift = 32 - STRIDE;
+        // descend to the level which holds the last bits of the prefix
+        while(length > 32 - shift) {
+            int index = (prefix >>> shift) & (SLOTS - 1);
+            if(node.children == null) {
+                node.children = new Node[SLOTS];
+            }
+            Node child = node.children[index];
+            if(child == null) {
+                child = node.children[index] = new Node();
+            }
+            node = child;
+            shift -= STRIDE;
+        }
+
+        int levelLength = length - (32 - shift - STRIDE);
+        int first = (prefix >>> shift) & (SLOTS - 1);
+        int count = 1 << (STRIDE - levelLength);
+        boolean replaced = false;
+        for(int i=first; i<first + count; i++) {
+            if(node.routes[i] == null || node.lengths[i] <= length) {
+                replaced |= node.routes[i] != null && node.lengths[i] == length;
+                node.routes[i] = route;
+                node.lengths[i] = (byte) length;
+            }
+        }
+        if(!replaced) {
+            size++;
+        }
+    }
+
+    /**
+     * @return route of the longest prefix matching the address or null
+     */
+    @SuppressWarnings("unchecked")
+    public T lookup(int address) {
+        Object best = null;
+        Node node = root;
+        for(int shift = 32 - STRIDE; node != null; shift -= STRIDE) {
+            int index = (address >>> shift) & (SLOTS - 1);
+            Object route = node.routes[index];
+            if(route != null) {
+                best = route;
+            }
+            node = node.children == null ? null : node.children[index];
+        }
+        return (T) best;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static final class Node {
+        final Object[] routes = new Object[SLOTS];
+        final byte[] lengths = new byte[SLOTS];
+        Node[] children;
+    }
+}
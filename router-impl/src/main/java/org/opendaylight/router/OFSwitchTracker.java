@@ -7,18 +7,41 @@
  */
 package org.opendaylight.router;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opendaylight.controller.md.sal.binding.api.DataChangeListener;
 import org.opendaylight.controller.md.sal.common.api.data.AsyncDataChangeEvent;
-import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev100924.Ipv4Address;
+import org.opendaylight.packet.FrameDecoder;
+import org.opendaylight.proxyarp.ProxyArp;
 import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev100924.Ipv4Prefix;
 import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev100924.Uri;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.yang.types.rev130715.MacAddress;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.OutputActionCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.SetDlDstActionCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.SetDlSrcActionCaseBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.SetVlanIdActionCaseBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.output.action._case.OutputActionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.set.dl.dst.action._case.SetDlDstActionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.set.dl.src.action._case.SetDlSrcActionBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.set.vlan.id.action._case.SetVlanIdActionBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.Action;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.ActionBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowId;
@@ -29,36 +52,129 @@ import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.ta
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.FlowKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.AddFlowInputBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.FlowTableRef;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.RemoveFlowInputBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.SalFlowService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowCookie;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.FlowRef;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.OutputPortValues;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.flow.InstructionsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.flow.Match;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.flow.MatchBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.ApplyActionsCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.GoToTableCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.MeterCaseBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.WriteMetadataCaseBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.apply.actions._case.ApplyActionsBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.go.to.table._case.GoToTableBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.meter._case.MeterBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.write.metadata._case.WriteMetadataBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.Instruction;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.InstructionBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeRef;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
-import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.l2.types.rev130827.EtherType;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.l2.types.rev130827.VlanId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.AddMeterInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.AddMeterInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.AddMeterOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.RemoveMeterInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.RemoveMeterInputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.RemoveMeterOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.SalMeterService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.BandId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.MeterBandType;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.MeterFlags;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.MeterId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.band.type.band.type.DropBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.MeterBandHeadersBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.meter.band.headers.MeterBandHeader;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.meter.band.headers.MeterBandHeaderBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.meter.band.headers.MeterBandHeaderKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.types.rev130918.meter.meter.band.headers.meter.band.header.MeterBandTypesBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.ethernet.match.fields.EthernetDestinationBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.ethernet.match.fields.EthernetTypeBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.EthernetMatch;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.EthernetMatchBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.MetadataBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.VlanMatchBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.layer._3.match.Ipv4MatchBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.vlan.match.fields.VlanIdBuilder;
 import org.opendaylight.yangtools.yang.binding.DataObject;
 import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.opendaylight.yangtools.yang.common.RpcError;
+import org.opendaylight.yangtools.yang.common.RpcResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 public class OFSwitchTracker implements DataChangeListener {
 
     private static final Logger LOG = LoggerFactory.getLogger(RouterProvider.class);
+    private static final String FLOW_ID_PREFIX = "router-on-stick";
+    private static final int LEARNING_FLOW_IDLE_TIMEOUT = 30;
+    private static final int CACHE_PRUNE_INTERVAL = 1024;
+    private static final int ROUTING_FLOW_PRIORITY = 100;
+    private static final int ADMISSION_FLOW_PRIORITY = 100;
+    private static final int REWRITE_FLOW_PRIORITY = 100;
+    private static final int PUNT_FLOW_PRIORITY = 1;
+    private static final long PUNT_METER_ID = 1;
+    // codes of the errors a switch answers a meter it can't install with
+    private static final List<String> METER_CAPABILITY_ERRORS = Arrays.asList(
+            "OUT_OF_METERS", "OUT_OF_BANDS", "BAD_RATE", "BAD_BURST", "BAD_BAND", "BAD_FLAGS", "BAD_TYPE");
+    public static final long DEFAULT_PUNT_METER_RATE = 1000;
+    public static final long DEFAULT_PUNT_METER_BURST = 100;
+    // OFPCML_NO_BUFFER, the switch sends the whole packet
+    private static final int NO_BUFFER = 0xffff;
+    private static final BigInteger METADATA_MASK = BigInteger.valueOf(0xffffffffL);
+
+    /** ingress port/vlan admission, the other packets are dropped */
+    static final short CLASSIFIER_TABLE = 0;
+    /** ipv4 destination routing, picks the next hop */
+    static final short ROUTING_TABLE = 1;
+    /** mac/vlan rewrite and output towards the next hop */
+    static final short REWRITE_TABLE = 2;
+    private static final int MAX_INSTALL_ATTEMPTS = 5;
+    private static final long RETRY_BACKOFF_MILLIS = 100;
+
+    /**
+     * What the routing flows match on.
+     */
+    public enum FlowMode {
+        /** in port, source and destination host and vlan, one flow per conversation */
+        HOST_PAIR,
+        /** destination host, one flow per host */
+        DESTINATION,
+        /** destination prefix for the static routes, destination host otherwise */
+        SUBNET
+    }
+
     SalFlowService salFlowService;
+    private SalMeterService salMeterService;
+    private long puntMeterRate = DEFAULT_PUNT_METER_RATE;
+    private long puntMeterBurst = DEFAULT_PUNT_METER_BURST;
+    private UserDataHandler userDataHandler;
+    private volatile FlowMode flowMode = FlowMode.DESTINATION;
+    private FlowCommitQueue flowCommitQueue;
+
+    private ScheduledExecutorService scheduler;
+    private Executor flowExecutor = MoreExecutors.directExecutor();
+    private Ticker ticker = Ticker.systemTicker();
+
+    private final AtomicLong flowIdGenerator = new AtomicLong();
+    // desired and installed routing flows per switch, a switch map is its own lock
+    private final ConcurrentMap<NodeId, ConcurrentMap<FlowMatchKey, FlowState>> switchFlows = new ConcurrentHashMap<>();
+    // admission flows of the connected switches by port and vlan, guarded by itself
+    private final Map<NodeId, Map<Long, Flow>> admissionFlows = new HashMap<>();
 
     public OFSwitchTracker(SalFlowService salFlowService) {
         this.salFlowService = salFlowService;
@@ -76,31 +192,304 @@ public class OFSwitchTracker implements DataChangeListener {
             if (flowCapableNode!= null) {
                 LOG.info("identified the OF NODE : {}", elem.getKey());
                 InstanceIdentifier<Node> nodeIID = (InstanceIdentifier<Node>) elem.getKey();
-                InstanceIdentifier<Table> tableRef = getTableInstanceIdentifier(nodeIID);
-                InstanceIdentifier<Flow> flowRef = getFlowInstanceId(tableRef);
+                NodeId nodeId = nodeIID.firstKeyOf(Node.class).getId();
 
-                installDefaultFlowRule(nodeIID,
-                        tableRef,
-                        flowRef,
-                        getDefaultPuntToControllerFlow());
+                // a (re)connected switch starts without the learnt flows
+                switchFlows.remove(nodeId);
+                installPipeline(nodeIID, nodeId);
+            }
+        }
+
+        for(InstanceIdentifier<?> removed : change.getRemovedPaths()) {
+            NodeKey nodeKey = removed.firstKeyOf(Node.class);
+            if(nodeKey != null && Node.class.equals(removed.getTargetType())) {
+                LOG.info("switch {} is gone, dropping its flow cache", nodeKey.getId().getValue());
+                switchFlows.remove(nodeKey.getId());
+                synchronized (admissionFlows) {
+                    admissionFlows.remove(nodeKey.getId());
+                }
+                if(flowCommitQueue != null) {
+                    flowCommitQueue.clear(nodeKey.getId());
+                }
             }
         }
     }
 
-    private InstanceIdentifier<Table> getTableInstanceIdentifier(InstanceIdentifier<Node> nodeIID) {
+    private InstanceIdentifier<Table> getTableInstanceIdentifier(InstanceIdentifier<Node> nodeIID, short tableId) {
 
         return nodeIID.augmentation(FlowCapableNode.class)
-                .child(Table.class, new TableKey((short) 0));
+                .child(Table.class, new TableKey(tableId));
     }
 
-    private InstanceIdentifier<Flow> getFlowInstanceId(InstanceIdentifier<Table> tableId) {
-        // generate unique flow key
-        FlowId flowId = new FlowId("router-on-stick");
+    private InstanceIdentifier<Flow> getFlowInstanceId(InstanceIdentifier<Table> tableId, FlowId flowId) {
         FlowKey flowKey = new FlowKey(flowId);
         return tableId.builder().child(Flow.class, flowKey).build();
     }
 
-    public void installDefaultFlowRule(InstanceIdentifier<Node> nodRef,
+    /**
+     * Install the table miss flows of the pipeline, the metered punt flows
+     * and the admission flows of the configured sub-interfaces. Table 0
+     * drops what isn't admitted, the routing table drops what isn't arp or
+     * ipv4 sent to the router.
+     */
+    private void installPipeline(final InstanceIdentifier<Node> nodeIID, NodeId nodeId) {
+        installPipelineFlow(nodeIID, getTableMissFlow(CLASSIFIER_TABLE, FLOW_ID_PREFIX + "-drop"), 1);
+        installPipelineFlow(nodeIID, getTableMissFlow(ROUTING_TABLE, FLOW_ID_PREFIX), 1);
+
+        // the punt flows can only refer to the meter once it's there
+        long rate = puntMeterRate;
+        if(salMeterService == null || rate == 0) {
+            installPuntFlows(nodeIID, null);
+        } else {
+            installPuntMeter(nodeIID, getPuntMeter(rate, puntMeterBurst)
+                    .setNode(new NodeRef(nodeIID))
+                    .build(), 1);
+        }
+
+        synchronized (admissionFlows) {
+            // the switch may have kept flows of an earlier connection, re-send them all
+            admissionFlows.put(nodeId, new HashMap<Long, Flow>());
+            updateAdmissionFlows(nodeId);
+        }
+    }
+
+    /**
+     * Install the punt meter, then the punt flows using it. The switch may
+     * have kept the meter of an earlier connection, with another rate too,
+     * so it's removed first, a meter which isn't there fails to be removed.
+     * The punt flows only go without the meter if the switch can't meter
+     * them, the other failures are retried.
+     */
+    private void installPuntMeter(final InstanceIdentifier<Node> nodeIID, final AddMeterInput meter,
+            final int attempt) {
+        RemoveMeterInput stale = new RemoveMeterInputBuilder()
+                .setNode(meter.getNode())
+                .setMeterId(meter.getMeterId())
+                .build();
+        ListenableFuture<RpcResult<RemoveMeterOutput>> removed = RpcFutures.withTimeout(
+                RpcFutures.listen(salMeterService.removeMeter(stale), scheduler),
+                RpcFutures.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS, scheduler);
+        Futures.addCallback(removed, new FutureCallback<RpcResult<RemoveMeterOutput>>() {
+            @Override
+            public void onSuccess(RpcResult<RemoveMeterOutput> result) {
+                if(!result.isSuccessful()) {
+                    LOG.debug("no punt meter removed from {}: {}", nodeIID, result.getErrors());
+                }
+                addPuntMeter(nodeIID, meter, attempt);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOG.debug("failed to remove the punt meter from {}", nodeIID, t);
+                addPuntMeter(nodeIID, meter, attempt);
+            }
+        }, flowExecutor);
+    }
+
+    private void addPuntMeter(final InstanceIdentifier<Node> nodeIID, final AddMeterInput meter,
+            final int attempt) {
+        ListenableFuture<RpcResult<AddMeterOutput>> added = RpcFutures.withTimeout(
+                RpcFutures.listen(salMeterService.addMeter(meter), scheduler),
+                RpcFutures.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS, scheduler);
+        Futures.addCallback(added, new FutureCallback<RpcResult<AddMeterOutput>>() {
+            @Override
+            public void onSuccess(RpcResult<AddMeterOutput> result) {
+                if(result.isSuccessful()) {
+                    LOG.debug("punt meter installed on {}", nodeIID);
+                    installPuntFlows(nodeIID, PUNT_METER_ID);
+                } else if(isMeterUnsupported(result.getErrors())) {
+                    LOG.warn("{} can't meter the punted packets, punting without the meter: {}",
+                            nodeIID, result.getErrors());
+                    installPuntFlows(nodeIID, null);
+                } else {
+                    retry(new IllegalStateException("add meter failed: " + result.getErrors()));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                retry(t);
+            }
+
+            private void retry(Throwable t) {
+                if(attempt >= MAX_INSTALL_ATTEMPTS || scheduler == null) {
+                    LOG.error("failed to install the punt meter on {}, the punt flows are not installed",
+                            nodeIID, t);
+                    return;
+                }
+                LOG.warn("installing the punt meter on {} failed, retrying", nodeIID);
+                try {
+                    scheduleRetry(new Runnable() {
+                        @Override
+                        public void run() {
+                            installPuntMeter(nodeIID, meter, attempt + 1);
+                        }
+                    }, RETRY_BACKOFF_MILLIS << (attempt - 1));
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("scheduler is shut down");
+                }
+            }
+        }, flowExecutor);
+    }
+
+    /**
+     * @return true if the errors of a meter mod tell the switch can't meter
+     *         the punted packets, as opposed to a transient failure
+     */
+    private static boolean isMeterUnsupported(Collection<RpcError> errors) {
+        for(RpcError error : errors) {
+            String reason = error.getMessage() + " " + error.getInfo();
+            for(String code : METER_CAPABILITY_ERRORS) {
+                if(reason.contains(code)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void installPuntFlows(InstanceIdentifier<Node> nodeIID, Long meterId) {
+        for(Flow flow : getPuntFlows(meterId)) {
+            installPipelineFlow(nodeIID, flow, 1);
+        }
+    }
+
+    private void installPipelineFlow(final InstanceIdentifier<Node> nodeIID, final Flow flow,
+            final int attempt) {
+        InstanceIdentifier<Table> tableRef = getTableInstanceIdentifier(nodeIID, flow.getTableId());
+        Futures.addCallback(installDefaultFlowRule(nodeIID, tableRef, getFlowInstanceId(tableRef, flow.getId()), flow),
+                new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                LOG.debug("pipeline flow {} installed on {}", flow.getId().getValue(), nodeIID);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if(attempt >= MAX_INSTALL_ATTEMPTS || scheduler == null) {
+                    LOG.error("failed to install the pipeline flow {} on {}", flow.getId().getValue(), nodeIID, t);
+                    return;
+                }
+                LOG.warn("installing the pipeline flow {} on {} failed, retrying", flow.getId().getValue(), nodeIID);
+                try {
+                    scheduleRetry(new Runnable() {
+                        @Override
+                        public void run() {
+                            installPipelineFlow(nodeIID, flow, attempt + 1);
+                        }
+                    }, RETRY_BACKOFF_MILLIS << (attempt - 1));
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("scheduler is shut down");
+                }
+            }
+        }, flowExecutor);
+    }
+
+    /**
+     * Bring the admission flows of the connected switches in line with the
+     * configured sub-interfaces, to be called when the configuration changes.
+     */
+    public void updateAdmissionFlows() {
+        synchronized (admissionFlows) {
+            for(NodeId nodeId : admissionFlows.keySet()) {
+                updateAdmissionFlows(nodeId);
+            }
+        }
+    }
+
+    // called with the admission flows lock held
+    private void updateAdmissionFlows(NodeId nodeId) {
+        SubInterfaceIndex index = userDataHandler == null ? SubInterfaceIndex.EMPTY
+                : userDataHandler.getSubInterfaceIndex();
+        Map<Long, Flow> installed = admissionFlows.get(nodeId);
+        Map<Long, Flow> desired = new HashMap<>();
+        Map<Long, Flow> added = new HashMap<>();
+        for(int port : index.getPorts()) {
+            for(int vlan : index.getVlans(port)) {
+                long key = ((long) port << 12) | vlan;
+                Flow flow = installed.remove(key);
+                if(flow == null) {
+                    flow = getAdmissionFlow(nodeId, port, vlan);
+                    added.put(key, flow);
+                }
+                desired.put(key, flow);
+            }
+        }
+        // in place before anything is sent, a failure may be answered right away
+        admissionFlows.put(nodeId, desired);
+        for(Map.Entry<Long, Flow> entry : added.entrySet()) {
+            sendAdmissionFlow(nodeId, entry.getKey(), entry.getValue(), true, 1);
+        }
+        // what's left isn't configured anymore
+        for(Map.Entry<Long, Flow> entry : installed.entrySet()) {
+            sendAdmissionFlow(nodeId, entry.getKey(), entry.getValue(), false, 1);
+        }
+    }
+
+    /**
+     * Add or remove an admission flow, retrying with an exponential backoff
+     * for as long as the change is still wanted. An add which is out of
+     * attempts is forgotten so the next update sends it again.
+     */
+    private void sendAdmissionFlow(final NodeId nodeId, final long key, final Flow flow, final boolean add,
+            final int attempt) {
+        Futures.addCallback(sendFlow(nodeId, flow, add), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                LOG.debug("admission flow {} updated on {}", flow.getId().getValue(), nodeId.getValue());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                synchronized (admissionFlows) {
+                    if(!isAdmissionChangeWanted(nodeId, key, flow, add)) {
+                        return;
+                    }
+                    if(t instanceof CancellationException || attempt >= MAX_INSTALL_ATTEMPTS
+                            || scheduler == null) {
+                        LOG.warn("failed to update admission flow {} on {}", flow.getId().getValue(),
+                                nodeId.getValue(), t);
+                        if(add) {
+                            admissionFlows.get(nodeId).remove(key);
+                        }
+                        return;
+                    }
+                }
+                LOG.debug("updating admission flow {} on {} failed, retrying", flow.getId().getValue(),
+                        nodeId.getValue());
+                try {
+                    scheduleRetry(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (admissionFlows) {
+                                if(isAdmissionChangeWanted(nodeId, key, flow, add)) {
+                                    sendAdmissionFlow(nodeId, key, flow, add, attempt + 1);
+                                }
+                            }
+                        }
+                    }, RETRY_BACKOFF_MILLIS << (attempt - 1));
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("scheduler is shut down");
+                }
+            }
+        }, flowExecutor);
+    }
+
+    // called with the admission flows lock held, false once the switch left
+    // or the configuration changed since the change was sent
+    private boolean isAdmissionChangeWanted(NodeId nodeId, long key, Flow flow, boolean add) {
+        Map<Long, Flow> flows = admissionFlows.get(nodeId);
+        if(flows == null) {
+            return false;
+        }
+        return add ? flows.get(key) == flow : !flows.containsKey(key);
+    }
+
+    /**
+     * Send the flow with an add flow rpc.
+     * @return future failing if the rpc failed
+     */
+    public ListenableFuture<Void> installDefaultFlowRule(InstanceIdentifier<Node> nodRef,
             InstanceIdentifier<Table> tableRef,
             InstanceIdentifier<Flow> flowRef,
             Flow flow) {
@@ -111,12 +500,65 @@ public class OFSwitchTracker implements DataChangeListener {
         inputBuilder.setFlowTable(new FlowTableRef(tableRef));
         inputBuilder.setFlowRef(new FlowRef(flowRef));
 
-        // TODO: it returns the future add code for handling it
         // install the flow rule
-        salFlowService.addFlow(inputBuilder.build());
+        return checkResult(salFlowService.addFlow(inputBuilder.build()), "add flow");
     }
 
-    public static Flow getDefaultPuntToControllerFlow() {
+    private ListenableFuture<Void> removeFlowRule(InstanceIdentifier<Node> nodRef,
+            InstanceIdentifier<Table> tableRef,
+            InstanceIdentifier<Flow> flowRef,
+            Flow flow) {
+        RemoveFlowInputBuilder inputBuilder = new RemoveFlowInputBuilder(flow);
+        inputBuilder.setNode(new NodeRef(nodRef));
+        inputBuilder.setFlowTable(new FlowTableRef(tableRef));
+        inputBuilder.setFlowRef(new FlowRef(flowRef));
+        return checkResult(salFlowService.removeFlow(inputBuilder.build()), "remove flow");
+    }
+
+    /**
+     * @return future failing if the rpc failed or didn't answer within the
+     *         rpc timeout
+     */
+    private <T> ListenableFuture<Void> checkResult(Future<RpcResult<T>> future, final String operation) {
+        ListenableFuture<RpcResult<T>> answer = RpcFutures.withTimeout(RpcFutures.listen(future, scheduler),
+                RpcFutures.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS, scheduler);
+        return Futures.transform(answer, new AsyncFunction<RpcResult<T>, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(RpcResult<T> result) {
+                if(result.isSuccessful()) {
+                    return Futures.immediateFuture(null);
+                }
+                return Futures.immediateFailedFuture(
+                        new IllegalStateException(operation + " failed: " + result.getErrors()));
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Build the punt flows: the arp packets and the ipv4 packets sent to the
+     * router which have no routing flow yet go to the controller, as do the
+     * routed packets whose next hop has no rewrite flow. Table 0 only admits
+     * the configured vlans, everything else is dropped.
+     * The packets are punted whole: the packet received notification doesn't
+     * carry the buffer id, so a packet the switch buffered could never be
+     * released.
+     * @param meterId meter limiting the punted packets, null for none
+     */
+    public static List<Flow> getPuntFlows(Long meterId) {
+        Match arp = new MatchBuilder()
+                .setEthernetMatch(getEthernetMatch(FrameDecoder.ETHERTYPE_ARP, null))
+                .build();
+        Match unresolved = new MatchBuilder()
+                .setEthernetMatch(getEthernetMatch(FrameDecoder.ETHERTYPE_IPV4, ProxyArp.ROUTER_MAC))
+                .build();
+        return Arrays.asList(
+                getPuntFlow(ROUTING_TABLE, FLOW_ID_PREFIX + "-punt-arp", PUNT_FLOW_PRIORITY, arp, meterId),
+                getPuntFlow(ROUTING_TABLE, FLOW_ID_PREFIX + "-punt-ipv4", PUNT_FLOW_PRIORITY, unresolved, meterId),
+                getPuntFlow(REWRITE_TABLE, FLOW_ID_PREFIX + "-rewrite-miss", 0, new MatchBuilder().build(),
+                        meterId));
+    }
+
+    static Flow getPuntFlow(short tableId, String flowId, int priority, Match match, Long meterId) {
 
         // Create Action to forward the packet to controller
         ActionBuilder actBuilder = new ActionBuilder();
@@ -126,116 +568,515 @@ public class OFSwitchTracker implements DataChangeListener {
                         new OutputActionBuilder()
                         .setOutputNodeConnector(
                                 new Uri(OutputPortValues.CONTROLLER.toString()))
+                        .setMaxLength(NO_BUFFER)
                         .build())
                 .build())
         .setOrder(0);
 
-        // Create instruction
-        InstructionBuilder instBuilder = new InstructionBuilder();
-        instBuilder.setInstruction(
-                new ApplyActionsCaseBuilder()
-                .setApplyActions(
-                        new ApplyActionsBuilder()
-                        .setAction(Arrays.asList(actBuilder.build()))
+        // Create instructions, the meter goes first
+        List<Instruction> instructions = new ArrayList<>();
+        if(meterId != null) {
+            instructions.add(new InstructionBuilder()
+                    .setInstruction(
+                            new MeterCaseBuilder()
+                            .setMeter(new MeterBuilder()
+                                    .setMeterId(new MeterId(meterId))
+                                    .build())
+                            .build())
+                    .setOrder(0)
+                    .build());
+        }
+        instructions.add(new InstructionBuilder()
+                .setInstruction(
+                        new ApplyActionsCaseBuilder()
+                        .setApplyActions(
+                                new ApplyActionsBuilder()
+                                .setAction(Arrays.asList(actBuilder.build()))
+                                .build())
                         .build())
-                .build())
-        .setOrder(0);
-
-        // create match field
-        MatchBuilder matchBuilder = new MatchBuilder();
+                .setOrder(instructions.size())
+                .build());
 
         // create flow
         FlowBuilder flowBuilder = new FlowBuilder();
-        flowBuilder.setBufferId(0xffffffffL)
+        flowBuilder.setId(new FlowId(flowId))
+        .setBufferId(0xffffffffL)
         .setInstructions(
                 new InstructionsBuilder()
-                .setInstruction(
-                        Arrays.asList(instBuilder.build()))
+                .setInstruction(instructions)
                 .build()
                 )
-        .setTableId((short)0)
-        .setPriority(0)
-        .setMatch(matchBuilder.build());
+        .setTableId(tableId)
+        .setPriority(priority)
+        .setMatch(match);
 
         return flowBuilder.build();
     }
 
-    public void createAndInstallLearingFlowRule(Ipv4Address src, Ipv4Address dest,
-            int sVlanID, int dVlanID, Node node, NodeConnector inport,
-            NodeConnector outport) {
+    /**
+     * @return table miss flow dropping the packets
+     */
+    public static Flow getTableMissFlow(short tableId, String flowId) {
+        // no instructions, the packet is dropped
+        return new FlowBuilder()
+                .setId(new FlowId(flowId))
+                .setBufferId(0xffffffffL)
+                .setTableId(tableId)
+                .setPriority(0)
+                .setMatch(new MatchBuilder().build())
+                .build();
+    }
+
+    /**
+     * Build the meter of the punt flows: a drop band over the packet rate.
+     */
+    static AddMeterInputBuilder getPuntMeter(long rate, long burst) {
+        MeterBandHeader drop = new MeterBandHeaderBuilder()
+                .setKey(new MeterBandHeaderKey(new BandId(0L)))
+                .setBandId(new BandId(0L))
+                .setBandRate(rate)
+                .setBandBurstSize(burst)
+                .setBandType(new DropBuilder()
+                        .setDropRate(rate)
+                        .setDropBurstSize(burst)
+                        .build())
+                .setMeterBandTypes(new MeterBandTypesBuilder()
+                        .setFlags(new MeterBandType(true, false, false))
+                        .build())
+                .build();
+
+        return new AddMeterInputBuilder()
+                .setMeterId(new MeterId(PUNT_METER_ID))
+                .setMeterName(FLOW_ID_PREFIX + "-punt")
+                // burst, kbps, pktps, stats
+                .setFlags(new MeterFlags(true, false, true, false))
+                .setMeterBandHeaders(new MeterBandHeadersBuilder()
+                        .setMeterBandHeader(Arrays.asList(drop))
+                        .build());
+    }
+
+    private static EthernetMatch getEthernetMatch(int etherType, Long destinationMac) {
+        EthernetMatchBuilder ethernetMatch = new EthernetMatchBuilder()
+                .setEthernetType(new EthernetTypeBuilder()
+                        .setType(new EtherType(new Long(etherType)))
+                        .build());
+        if(destinationMac != null) {
+            ethernetMatch.setEthernetDestination(new EthernetDestinationBuilder()
+                    .setAddress(new MacAddress(PacketUtil.macToString(destinationMac)))
+                    .build());
+        }
+        return ethernetMatch.build();
+    }
+
+    /**
+     * Build the admission flow of table 0: the packets of the vlan received
+     * on the port go on to the routing table.
+     */
+    public static Flow getAdmissionFlow(NodeId nodeId, int port, int vlan) {
+        MatchBuilder matchBuilder = new MatchBuilder()
+                .setInPort(new NodeConnectorId(nodeId.getValue() + ":" + port))
+                .setVlanMatch(
+                        new VlanMatchBuilder()
+                        .setVlanId(new VlanIdBuilder()
+                                .setVlanIdPresent(true)
+                                .setVlanId(new VlanId(vlan))
+                                .build())
+                        .build());
+
+        InstructionBuilder gotoRouting = new InstructionBuilder();
+        gotoRouting.setInstruction(
+                new GoToTableCaseBuilder()
+                .setGoToTable(new GoToTableBuilder()
+                        .setTableId(ROUTING_TABLE)
+                        .build())
+                .build())
+        .setOrder(0);
+
+        return new FlowBuilder()
+                .setId(new FlowId(FLOW_ID_PREFIX + "-admit-" + port + "-" + vlan))
+                .setInstructions(
+                        new InstructionsBuilder()
+                        .setInstruction(Arrays.asList(gotoRouting.build()))
+                        .build())
+                .setBufferId(0xffffffffL)
+                .setMatch(matchBuilder.build())
+                .setPriority(ADMISSION_FLOW_PRIORITY)
+                .setTableId(CLASSIFIER_TABLE)
+                .build();
+    }
+
+    /**
+     * Install the flows routing the packets towards the destination host,
+     * unless the same flows were already sent to the switch: the routing flow
+     * picking the next hop and the rewrite flow of the next hop. A flow can
+     * only idle out once its idle timeout passed since it was sent, so until
+     * then the punted packets matching it are the ones which raced with the
+     * installation.
+     * @param route route of the destination, may be null
+     * @return true if a flow was sent to the switch
+     */
+    public boolean installRoutingFlow(InventoryCache.SwitchRecord node, InventoryCache.PortRecord inport,
+            InventoryCache.PortRecord outport, int source, int destination, int sVlanID, int dVlanID,
+            long destinationMac, SubInterfaceIndex.Route route) {
+
+        int nextHop = route != null && route.getNextHop() != 0 ? route.getNextHop() : destination;
+        FlowMatchKey matchKey;
+        switch(flowMode) {
+        case HOST_PAIR:
+            matchKey = new FlowMatchKey(inport.getId().getValue(), source, destination, 32, sVlanID);
+            break;
+        case SUBNET:
+            // all the destinations behind a next hop share the same flow
+            if(nextHop != destination) {
+                matchKey = new FlowMatchKey(null, 0, route.getPrefix(), route.getPrefixLength(), -1);
+                break;
+            }
+            // fall through
+        default:
+            matchKey = new FlowMatchKey(null, 0, destination, 32, -1);
+            break;
+        }
+
+        // the rewrite goes first so the routed packets don't miss it
+        boolean sent = install(node, FlowMatchKey.rewrite(nextHop), false, nextHop, dVlanID, destinationMac, outport);
+        return install(node, matchKey, false, nextHop, dVlanID, destinationMac, outport) || sent;
+    }
+
+    /**
+     * Install the flows towards a newly learnt (or moved) host ahead of any
+     * traffic: the rewrite flow of the host, which replaces the one sent
+     * earlier, the routing flow of the host itself and, in the subnet mode,
+     * the routing flows of the static routes using the host as next hop. Only
+     * the rewrite flow is installed in the host pair mode as the sources are
+     * not known yet.
+     * @param routesVia static routes whose next hop is the host
+     */
+    public void installDestinationFlows(InventoryCache.SwitchRecord node, InventoryCache.PortRecord outport,
+            int destination, int dVlanID,
+            long destinationMac, List<SubInterfaceIndex.Route> routesVia) {
+        FlowMode mode = flowMode;
+        install(node, FlowMatchKey.rewrite(destination), true, destination, dVlanID, destinationMac, outport);
+        if(mode == FlowMode.HOST_PAIR) {
+            return;
+        }
+        install(node, new FlowMatchKey(null, 0, destination, 32, -1), false,
+                destination, dVlanID, destinationMac, outport);
+        if(mode == FlowMode.SUBNET) {
+            for(SubInterfaceIndex.Route route : routesVia) {
+                install(node, new FlowMatchKey(null, 0, route.getPrefix(), route.getPrefixLength(), -1),
+                        false, destination, dVlanID, destinationMac, outport);
+            }
+        }
+    }
+
+    private boolean install(InventoryCache.SwitchRecord node, FlowMatchKey matchKey, boolean replace,
+            int nextHop, int dVlanID, long destinationMac, InventoryCache.PortRecord outport) {
+        NodeId nodeId = node.getId();
+        ConcurrentMap<FlowMatchKey, FlowState> flows = flowsOf(nodeId);
+        FlowState state;
+        long generation;
+        synchronized (flows) {
+            long now = ticker.read();
+            state = flows.get(matchKey);
+            if(state != null && !replace
+                    && (state.inFlight || now - state.installedAt < holdDown())) {
+                // the punt raced with the installation, attach to it
+                LOG.debug("flow {} is already installed on {}", matchKey, nodeId.getValue());
+                return false;
+            }
+
+            Flow template = matchKey.table == REWRITE_TABLE
+                    ? getRewriteFlow(nextHop, dVlanID, destinationMac, outport)
+                    : getRoutingFlow(matchKey, nextHop);
+            FlowBuilder flow = new FlowBuilder(template);
+            if(state != null) {
+                // same match, the new flow replaces the old one under its id
+                flow.setId(state.desired.getId())
+                .setCookie(state.desired.getCookie());
+            } else {
+                long id = flowIdGenerator.incrementAndGet();
+                flow.setId(new FlowId(FLOW_ID_PREFIX + "-" + id))
+                .setCookie(new FlowCookie(BigInteger.valueOf(id)));
+                // pruned before the new state is in, which isn't in flight yet
+                if((flows.size() + 1) % CACHE_PRUNE_INTERVAL == 0) {
+                    prune(flows, now);
+                }
+                state = new FlowState();
+                flows.put(matchKey, state);
+            }
+            state.desired = flow.build();
+            state.inFlight = true;
+            state.attempts = 0;
+            generation = ++state.generation;
+        }
+        send(nodeId, flows, matchKey, state, generation);
+        return true;
+    }
+
+    /**
+     * Send the desired flow of the state, retrying with an exponential
+     * backoff until it's installed, replaced by a newer flow or out of
+     * attempts.
+     */
+    private void send(final NodeId nodeId, final ConcurrentMap<FlowMatchKey, FlowState> flows,
+            final FlowMatchKey matchKey, final FlowState state, final long generation) {
+        Flow flow;
+        synchronized (flows) {
+            if(state.generation != generation || flows.get(matchKey) != state) {
+                return;
+            }
+            flow = state.desired;
+        }
+
+        Futures.addCallback(sendFlow(nodeId, flow, true), new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                synchronized (flows) {
+                    if(state.generation == generation) {
+                        state.inFlight = false;
+                        state.installedAt = ticker.read();
+                    }
+                }
+            }
 
+            @Override
+            public void onFailure(Throwable t) {
+                int attempt;
+                synchronized (flows) {
+                    if(state.generation != generation) {
+                        return;
+                    }
+                    attempt = ++state.attempts;
+                    if(t instanceof CancellationException || attempt >= MAX_INSTALL_ATTEMPTS
+                            || scheduler == null) {
+                        // forget it, the next punted packet starts over
+                        flows.remove(matchKey, state);
+                        LOG.warn("giving up installing flow {} on {}", matchKey, nodeId.getValue(), t);
+                        return;
+                    }
+                }
+                long backoff = RETRY_BACKOFF_MILLIS << (attempt - 1);
+                LOG.debug("installing flow {} on {} failed, retry in {}ms", matchKey, nodeId.getValue(), backoff);
+                try {
+                    scheduleRetry(new Runnable() {
+                        @Override
+                        public void run() {
+                            send(nodeId, flows, matchKey, state, generation);
+                        }
+                    }, backoff);
+                } catch (RejectedExecutionException e) {
+                    flows.remove(matchKey, state);
+                }
+            }
+        }, flowExecutor);
+    }
+
+    // the scheduler only times the retry, which runs on the flow executor
+    private void scheduleRetry(final Runnable retry, long delayMillis) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flowExecutor.execute(retry);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("flow executor is shut down");
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private ListenableFuture<Void> sendFlow(NodeId nodeId, Flow flow, boolean add) {
+        if(flowCommitQueue != null) {
+            return add ? flowCommitQueue.addFlow(nodeId, flow) : flowCommitQueue.removeFlow(nodeId, flow);
+        }
         InstanceIdentifier<Node> nodeIID = InstanceIdentifier.create(Nodes.class)
-                .child(Node.class, new NodeKey(node.getKey()));
-        InstanceIdentifier<Table> tableIID = getTableInstanceIdentifier(nodeIID);
-        InstanceIdentifier<Flow> flowIID = getFlowInstanceId(tableIID);
+                .child(Node.class, new NodeKey(nodeId));
+        InstanceIdentifier<Table> tableIID = getTableInstanceIdentifier(nodeIID, flow.getTableId());
+        InstanceIdentifier<Flow> flowIID = getFlowInstanceId(tableIID, flow.getId());
+        return add ? installDefaultFlowRule(nodeIID, tableIID, flowIID, flow)
+                : removeFlowRule(nodeIID, tableIID, flowIID, flow);
+    }
+
+    private ConcurrentMap<FlowMatchKey, FlowState> flowsOf(NodeId nodeId) {
+        ConcurrentMap<FlowMatchKey, FlowState> flows = switchFlows.get(nodeId);
+        if(flows == null) {
+            ConcurrentMap<FlowMatchKey, FlowState> newFlows = new ConcurrentHashMap<>();
+            flows = switchFlows.putIfAbsent(nodeId, newFlows);
+            if(flows == null) {
+                flows = newFlows;
+            }
+        }
+        return flows;
+    }
+
+    // drop the installed flows which may have idled out by now
+    private static void prune(ConcurrentMap<FlowMatchKey, FlowState> flows, long now) {
+        for(Iterator<FlowState> it = flows.values().iterator(); it.hasNext();) {
+            FlowState state = it.next();
+            if(!state.inFlight && now - state.installedAt >= holdDown()) {
+                it.remove();
+            }
+        }
+    }
 
-        Flow flow = getLearningFlow(src, dest,sVlanID, dVlanID, node, inport, outport);
+    private static long holdDown() {
+        return TimeUnit.SECONDS.toNanos(LEARNING_FLOW_IDLE_TIMEOUT);
+    }
 
-        installDefaultFlowRule(nodeIID, tableIID, flowIID, flow);
+    public void setFlowMode(FlowMode flowMode) {
+        this.flowMode = flowMode;
     }
-    static Flow getLearningFlow(Ipv4Address src, Ipv4Address dest,
-            int sVlanID, int dVlanID, Node node, NodeConnector inport,
-            NodeConnector outport){
+
+    /**
+     * @param salMeterService service adding the punt meter, if null the
+     *        punted packets aren't limited
+     */
+    public void setSalMeterService(SalMeterService salMeterService) {
+        this.salMeterService = salMeterService;
+    }
+
+    /**
+     * @param rate packets per second the switch punts to the controller,
+     *        0 disables the meter
+     * @param burst packets punted in a burst above the rate
+     */
+    public void setPuntMeter(long rate, long burst) {
+        this.puntMeterRate = rate;
+        this.puntMeterBurst = burst;
+    }
+
+    /**
+     * @param userDataHandler source of the sub-interfaces admitted by table 0
+     */
+    public void setUserDataHandler(UserDataHandler userDataHandler) {
+        this.userDataHandler = userDataHandler;
+    }
+
+    /**
+     * @param scheduler scheduler for the retries of the failed flow installations
+     *        and the rpc timeouts
+     */
+    public void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param flowExecutor executor of the retried flow installations and of
+     *        the rpc answers which lead to more flows, so the scheduler thread
+     *        only fires the timers
+     */
+    public void setFlowExecutor(Executor flowExecutor) {
+        this.flowExecutor = flowExecutor;
+    }
+
+    /**
+     * @param ticker clock of the hold-down of the installed flows
+     */
+    public void setTicker(Ticker ticker) {
+        this.ticker = ticker;
+    }
+
+    /**
+     * @param flowCommitQueue queue batching the routing flows, if null every
+     *        flow is sent on its own
+     */
+    public void setFlowCommitQueue(FlowCommitQueue flowCommitQueue) {
+        this.flowCommitQueue = flowCommitQueue;
+    }
+
+    /**
+     * Build the routing flow: tag the packets matching the key with their
+     * next hop in the metadata and hand them to the rewrite table. The
+     * longer prefixes get the higher priority.
+     */
+    static Flow getRoutingFlow(FlowMatchKey matchKey, int nextHop){
 
         FlowBuilder flowBuilder = new FlowBuilder();
 
-        // create match criteria
+        // create match criteria, only the packets sent to the router are routed
         MatchBuilder matchBuilder = new MatchBuilder();
-        matchBuilder.setInPort(new NodeConnectorId(inport.getId()));
+        if(matchKey.inPort != null) {
+            matchBuilder.setInPort(new NodeConnectorId(matchKey.inPort));
+        }
 
-        matchBuilder.setEthernetMatch(
-                new EthernetMatchBuilder()
-                .setEthernetType(new EthernetTypeBuilder()
-                        .setType(new EtherType(new Long(0x0800)))
-                        .build())
-                .build());
-        matchBuilder.setLayer3Match(
-                new Ipv4MatchBuilder()
-                .setIpv4Source(
-                        new Ipv4Prefix(src.getValue() + "/32"))
+        matchBuilder.setEthernetMatch(getEthernetMatch(FrameDecoder.ETHERTYPE_IPV4, ProxyArp.ROUTER_MAC));
+        Ipv4MatchBuilder ipv4Match = new Ipv4MatchBuilder()
                 .setIpv4Destination(
-                        new Ipv4Prefix(dest.getValue() + "/32"))
-                .build()
-                );
-        matchBuilder.setVlanMatch(
-                new VlanMatchBuilder()
-                .setVlanId(
-                        new VlanIdBuilder()
-                        .setVlanIdPresent(true)
-                        .setVlanId(new VlanId(new Integer(sVlanID)))
-                        .build())
-                .build()
-                );
+                        new Ipv4Prefix(PacketUtil.ipv4ToString(matchKey.destination) + "/" + matchKey.prefixLength));
+        if(matchKey.source != 0) {
+            ipv4Match.setIpv4Source(
+                    new Ipv4Prefix(PacketUtil.ipv4ToString(matchKey.source) + "/32"));
+        }
+        matchBuilder.setLayer3Match(ipv4Match.build());
 
-        // create actions
-        ActionBuilder rewirteVlanID = new ActionBuilder();
-        rewirteVlanID.setAction(
-                new SetVlanIdActionCaseBuilder()
-                .setSetVlanIdAction(new SetVlanIdActionBuilder()
-                        .setVlanId(new VlanId(new Integer(dVlanID)))
-                        .build()
-                        )
+        // table 0 only admits tagged packets
+        if(matchKey.vlan >= 0) {
+            matchBuilder.setVlanMatch(
+                    new VlanMatchBuilder()
+                    .setVlanId(new VlanIdBuilder()
+                            .setVlanIdPresent(true)
+                            .setVlanId(new VlanId(new Integer(matchKey.vlan)))
+                            .build())
+                    .build()
+                    );
+        }
+
+        // create Instructions
+        InstructionBuilder writeNextHop = new InstructionBuilder();
+        writeNextHop.setInstruction(
+                new WriteMetadataCaseBuilder()
+                .setWriteMetadata(new WriteMetadataBuilder()
+                        .setMetadata(BigInteger.valueOf(nextHop & 0xffffffffL))
+                        .setMetadataMask(METADATA_MASK)
+                        .build())
                 .build())
         .setOrder(0);
 
-        ActionBuilder outputActionBuilder = new ActionBuilder();
-        outputActionBuilder.setAction(
-                new OutputActionCaseBuilder()
-                .setOutputAction(new OutputActionBuilder()
-                        .setOutputNodeConnector(
-                                new Uri(outport.getId())
-                                )
+        InstructionBuilder gotoRewrite = new InstructionBuilder();
+        gotoRewrite.setInstruction(
+                new GoToTableCaseBuilder()
+                .setGoToTable(new GoToTableBuilder()
+                        .setTableId(REWRITE_TABLE)
                         .build())
                 .build())
         .setOrder(1);
 
+        // create flow
+        flowBuilder.setInstructions(
+                new InstructionsBuilder()
+                .setInstruction(Arrays.asList(writeNextHop.build(), gotoRewrite.build()))
+                .build())
+        .setIdleTimeout(LEARNING_FLOW_IDLE_TIMEOUT)
+        .setBufferId(0xffffffffL)
+        .setMatch(matchBuilder.build())
+        .setPriority(ROUTING_FLOW_PRIORITY + matchKey.prefixLength)
+        .setTableId(ROUTING_TABLE);
+
+        return flowBuilder.build();
+    }
+
+    /**
+     * Build the rewrite flow of the next hop: rewrite the mac addresses and
+     * the vlan of the packets routed to it and send them out of the output
+     * port.
+     */
+    static Flow getRewriteFlow(int nextHop, int dVlanID, long destinationMac, InventoryCache.PortRecord outport) {
+
+        FlowBuilder flowBuilder = new FlowBuilder();
+
+        MatchBuilder matchBuilder = new MatchBuilder();
+        matchBuilder.setMetadata(new MetadataBuilder()
+                .setMetadata(BigInteger.valueOf(nextHop & 0xffffffffL))
+                .setMetadataMask(METADATA_MASK)
+                .build());
+
         // create Instruction
         InstructionBuilder instructionBuidler = new InstructionBuilder();
         instructionBuidler.setInstruction(
                 new ApplyActionsCaseBuilder()
                 .setApplyActions(
                         new ApplyActionsBuilder()
-                        .setAction(Arrays.asList(rewirteVlanID.build(), outputActionBuilder.build()))
+                        .setAction(getRewriteActions(dVlanID, destinationMac, outport))
                         .build())
                 .build());
 
@@ -244,13 +1085,148 @@ public class OFSwitchTracker implements DataChangeListener {
                 new InstructionsBuilder()
                 .setInstruction(Arrays.asList(instructionBuidler.build()))
                 .build())
-        .setBarrier(true)
-        .setIdleTimeout(new Integer(30))
+        .setIdleTimeout(LEARNING_FLOW_IDLE_TIMEOUT)
         .setBufferId(0xffffffffL)
         .setMatch(matchBuilder.build())
-        .setPriority(100)
-        .setTableId((short) 0);
+        .setPriority(REWRITE_FLOW_PRIORITY)
+        .setTableId(REWRITE_TABLE);
 
         return flowBuilder.build();
     }
+
+    /**
+     * Build the actions routing a packet to the next hop: rewrite the mac
+     * addresses and the vlan and send it out of the output port. The packet
+     * outs of the routed packets use the same actions as the rewrite flows.
+     */
+    public static List<Action> getRewriteActions(int dVlanID, long destinationMac,
+            InventoryCache.PortRecord outport) {
+        return getRewriteActions(dVlanID, destinationMac, Collections.singletonList(outport.getId()));
+    }
+
+    /**
+     * Build the actions rewriting the mac addresses and the vlan of a packet
+     * once and sending it out of each of the ports, so a flood takes a
+     * single packet out.
+     */
+    public static List<Action> getRewriteActions(int dVlanID, long destinationMac, List<NodeConnectorId> outports) {
+
+        // create actions
+        ActionBuilder rewriteDestination = new ActionBuilder();
+        rewriteDestination.setAction(
+                new SetDlDstActionCaseBuilder()
+                .setSetDlDstAction(new SetDlDstActionBuilder()
+                        .setAddress(new MacAddress(PacketUtil.macToString(destinationMac)))
+                        .build())
+                .build())
+        .setOrder(0);
+
+        ActionBuilder rewriteSource = new ActionBuilder();
+        rewriteSource.setAction(
+                new SetDlSrcActionCaseBuilder()
+                .setSetDlSrcAction(new SetDlSrcActionBuilder()
+                        .setAddress(new MacAddress(PacketUtil.macToString(ProxyArp.ROUTER_MAC)))
+                        .build())
+                .build())
+        .setOrder(1);
+
+        ActionBuilder rewirteVlanID = new ActionBuilder();
+        rewirteVlanID.setAction(
+                new SetVlanIdActionCaseBuilder()
+                .setSetVlanIdAction(new SetVlanIdActionBuilder()
+                        .setVlanId(new VlanId(new Integer(dVlanID)))
+                        .build()
+                        )
+                .build())
+        .setOrder(2);
+
+        List<Action> actions = new ArrayList<>(3 + outports.size());
+        actions.add(rewriteDestination.build());
+        actions.add(rewriteSource.build());
+        actions.add(rewirteVlanID.build());
+        for(NodeConnectorId outport : outports) {
+            ActionBuilder outputActionBuilder = new ActionBuilder();
+            outputActionBuilder.setAction(
+                    new OutputActionCaseBuilder()
+                    .setOutputAction(new OutputActionBuilder()
+                            .setOutputNodeConnector(
+                                    new Uri(outport)
+                                    )
+                            .build())
+                    .build())
+            .setOrder(actions.size());
+            actions.add(outputActionBuilder.build());
+        }
+        return actions;
+    }
+
+    private static final class FlowState {
+        // guarded by the switch flow map, the flow id stays the same for the
+        // match so a replaced flow is coalesced in the commit queue
+        Flow desired;
+        boolean inFlight;
+        long installedAt;
+        int attempts;
+        long generation;
+    }
+
+    private static final class FlowMatchKey {
+        final short table;
+        // null and 0 (-1 for the vlan) when not part of the match
+        final String inPort;
+        final int source;
+        final int destination;
+        final int prefixLength;
+        final int vlan;
+
+        FlowMatchKey(String inPort, int source, int destination, int prefixLength, int vlan) {
+            this(ROUTING_TABLE, inPort, source, destination, prefixLength, vlan);
+        }
+
+        private FlowMatchKey(short table, String inPort, int source, int destination, int prefixLength,
+                int vlan) {
+            this.table = table;
+            this.inPort = inPort;
+            this.source = source;
+            this.destination = destination;
+            this.prefixLength = prefixLength;
+            this.vlan = vlan;
+        }
+
+        // the rewrite flows match the next hop
+        static FlowMatchKey rewrite(int nextHop) {
+            return new FlowMatchKey(REWRITE_TABLE, null, 0, nextHop, 32, -1);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = table * 31 + (inPort == null ? 0 : inPort.hashCode());
+            hash = hash * 31 + source;
+            hash = hash * 31 + destination;
+            hash = hash * 31 + prefixLength;
+            return hash * 31 + vlan;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(this == obj) {
+                return true;
+            }
+            if(!(obj instanceof FlowMatchKey)) {
+                return false;
+            }
+            FlowMatchKey other = (FlowMatchKey) obj;
+            return table == other.table && source == other.source && destination == other.destination
+                    && prefixLength == other.prefixLength && vlan == other.vlan
+                    && (inPort == null ? other.inPort == null : inPort.equals(other.inPort));
+        }
+
+        @Override
+        public String toString() {
+            return "FlowMatchKey [table=" + table + ", inPort=" + inPort
+                    + ", source=" + PacketUtil.ipv4ToString(source)
+                    + ", destination=" + PacketUtil.ipv4ToString(destination) + "/" + prefixLength
+                    + ", vlan=" + vlan + "]";
+        }
+    }
 }
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.router;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketProcessingListener;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketReceived;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hands the received packets over to a pool of workers, so the notification
+ * thread only queues them. A packet goes to the worker of its ingress port
+ * (the port id names the switch too), which keeps the packets of a port in
+ * order while the ports are processed in parallel.
+ *
+ * <p>Every worker has its own bounded queue, a worker which falls behind
+ * drops packets according to the drop policy instead of holding up the
+ * others.
+ *
+ * <p>The classifier sorts the packets into the priority classes of the
+ * queues, so the arp traffic is still answered quickly while the switches
+ * punt more ipv4 packets than the workers can take. The classes of a
+ * queue are served in turn by weight, the packets of a port keep their order
+ * within a class.
+ */
+public class PacketInDispatcher implements PacketProcessingListener, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(PacketInDispatcher.class);
+
+    public static final int DEFAULT_QUEUE_LENGTH = 1024;
+    // time close() waits for the workers to finish their packet
+    private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Priority classes of the received packets, highest first.
+     */
+    public enum Priority {
+        /** arp requests the router answers */
+        ARP_REQUEST(8),
+        /** arp replies and gratuitous arps, only learnt */
+        ARP_LEARNING(4),
+        /** ipv4 packets to a destination which has to be resolved */
+        NEW_IPV4(2),
+        /** ipv4 packets to a known destination waiting for their flow */
+        RESOLVED_IPV4(1);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * @return packets of the class served in a row
+         */
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Picks the priority class of a packet from its headers, called on the
+     * notification thread so it has to be cheap.
+     */
+    public interface Classifier {
+        Priority classify(PacketReceived packet);
+    }
+
+    private final PacketProcessingListener handler;
+    private final Classifier classifier;
+    private final List<PacketQueue<PacketReceived>> queues;
+    private final Thread[] workers;
+    private volatile boolean closed;
+    // guarded by this, drops per class at the last report
+    private final long[] reported = new long[Priority.values().length];
+
+    /**
+     * @param handler listener processing the packets on the workers
+     * @param classifier classifier of the packets, null to queue them all
+     *        in the highest class
+     * @param workers number of workers, 0 for one per processor
+     * @param queueLength packets a worker queues at most per priority class
+     */
+    public PacketInDispatcher(PacketProcessingListener handler, Classifier classifier, int workers,
+            int queueLength, PacketQueue.DropPolicy dropPolicy) {
+        Preconditions.checkArgument(workers >= 0, "workers can't be negative");
+        this.handler = Preconditions.checkNotNull(handler);
+        this.classifier = classifier;
+        Priority[] priorities = Priority.values();
+        int[] weights = new int[priorities.length];
+        for(Priority priority : priorities) {
+            weights[priority.ordinal()] = priority.getWeight();
+        }
+        int count = workers == 0 ? Runtime.getRuntime().availableProcessors() : workers;
+        this.queues = new ArrayList<>(count);
+        this.workers = new Thread[count];
+        for(int i=0; i<count; i++) {
+            final PacketQueue<PacketReceived> queue = new PacketQueue<>(queueLength, dropPolicy, weights);
+            queues.add(queue);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    process(queue);
+                }
+            }, "packet-in-" + i);
+            worker.setDaemon(true);
+            this.workers[i] = worker;
+        }
+        for(Thread worker : this.workers) {
+            worker.start();
+        }
+    }
+
+    @Override
+    public void onPacketReceived(PacketReceived packet) {
+        Priority priority = Priority.ARP_REQUEST;
+        if(classifier != null) {
+            try {
+                priority = classifier.classify(packet);
+            } catch (RuntimeException e) {
+                LOG.debug("failed to classify packet from {}", packet.getIngress(), e);
+                priority = Priority.RESOLVED_IPV4;
+            }
+        }
+        PacketQueue<PacketReceived> queue = queues.get(shardOf(packet));
+        if(!queue.offer(packet, priority.ordinal()) && LOG.isDebugEnabled()) {
+            LOG.debug("packet-in queue full, dropped {} packet from {}", priority, packet.getIngress());
+        }
+    }
+
+    /**
+     * @return number of packets dropped because a queue was full
+     */
+    public long getDropped() {
+        long dropped = 0;
+        for(PacketQueue<PacketReceived> queue : queues) {
+            dropped += queue.getDropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * @return number of packets of the class dropped because a queue was full
+     */
+    public long getDropped(Priority priority) {
+        long dropped = 0;
+        for(PacketQueue<PacketReceived> queue : queues) {
+            dropped += queue.getDropped(priority.ordinal());
+        }
+        return dropped;
+    }
+
+    /**
+     * Log the packets dropped since the last report, to be called
+     * periodically.
+     */
+    public synchronized void reportDrops() {
+        StringBuilder drops = new StringBuilder();
+        for(Priority priority : Priority.values()) {
+            long dropped = getDropped(priority);
+            long since = dropped - reported[priority.ordinal()];
+            reported[priority.ordinal()] = dropped;
+            if(since > 0) {
+                drops.append(drops.length() == 0 ? "" : ", ").append(since).append(' ').append(priority);
+            }
+        }
+        if(drops.length() > 0) {
+            LOG.warn("packet-in queues full, dropped {} packets", drops);
+        }
+    }
+
+    public int getWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * Stop the workers and wait for them to finish the packets they are
+     * processing, the queued packets are dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for(Thread worker : workers) {
+            worker.interrupt();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT);
+        for(Thread worker : workers) {
+            try {
+                TimeUnit.NANOSECONDS.timedJoin(worker, deadline - System.nanoTime());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if(worker.isAlive()) {
+                LOG.warn("{} didn't stop within {} ms", worker.getName(), CLOSE_TIMEOUT);
+            }
+        }
+    }
+
+    private int shardOf(PacketReceived packet) {
+        NodeConnectorId inPort = packet.getMatch() == null ? null : packet.getMatch().getInPort();
+        int hash = inPort == null ? 0 : inPort.getValue().hashCode();
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % queues.size();
+    }
+
+    private void process(PacketQueue<PacketReceived> queue) {
+        // the handler may swallow the interrupt
+        while(!closed) {
+            PacketReceived packet;
+            try {
+                packet = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                handler.onPacketReceived(packet);
+            } catch (RuntimeException e) {
+                LOG.warn("failed to process packet from {}", packet.getIngress(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.router;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounded queue of the packets waiting for a worker. When the queue is full
+ * the drop policy decides whether the new packet or the oldest one is
+ * dropped, the drops are counted. A queue is drained by a single worker.
+ *
+ * <p>The packets can be queued in several priority classes, each bounded on
+ * its own so a flood in one class doesn't push out the packets of another.
+ * The classes are served by weighted round robin: a class gets as many
+ * packets in a row as its weight before the next class with packets gets
+ * its turn, so a higher class waits for a bounded number of packets and a
+ * lower one is never starved.
+ */
+public class PacketQueue<T> {
+
+    public enum DropPolicy {
+        /** drop the packet which waited the longest, keep the new one */
+        DROP_OLDEST,
+        /** drop the new packet */
+        DROP_NEWEST
+    }
+
+    private final int capacity;
+    private final DropPolicy dropPolicy;
+    private final int[] weights;
+
+    // guarded by this
+    private final List<ArrayDeque<T>> packets;
+    private final long[] dropped;
+    private int size;
+    private int current;
+    private int credit;
+
+    public PacketQueue(int capacity, DropPolicy dropPolicy) {
+        this(capacity, dropPolicy, 1);
+    }
+
+    /**
+     * @param capacity packets queued per class at most
+     * @param weights weight of each class, the first class is priority 0
+     */
+    public PacketQueue(int capacity, DropPolicy dropPolicy, int... weights) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        Preconditions.checkArgument(weights.length > 0, "at least one class is needed");
+        for(int weight : weights) {
+            Preconditions.checkArgument(weight > 0, "weights must be positive");
+        }
+        this.capacity = capacity;
+        this.dropPolicy = Preconditions.checkNotNull(dropPolicy);
+        this.weights = weights.clone();
+        this.packets = new ArrayList<>(weights.length);
+        for(int i=0; i<weights.length; i++) {
+            packets.add(new ArrayDeque<T>());
+        }
+        this.dropped = new long[weights.length];
+        this.credit = weights[0];
+    }
+
+    /**
+     * Add the packet to the first class, dropping a packet if it's full.
+     * @return false if the packet was dropped
+     */
+    public boolean offer(T packet) {
+        return offer(packet, 0);
+    }
+
+    /**
+     * Add the packet to the class, dropping a packet of the class if it's
+     * full.
+     * @return false if the packet was dropped
+     */
+    public synchronized boolean offer(T packet, int priority) {
+        ArrayDeque<T> queue = packets.get(priority);
+        if(queue.size() >= capacity) {
+            dropped[priority]++;
+            if(dropPolicy == DropPolicy.DROP_NEWEST) {
+                return false;
+            }
+            queue.poll();
+            size--;
+        }
+        queue.add(packet);
+        if(++size == 1) {
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Wait for the next packet.
+     */
+    public synchronized T take() throws InterruptedException {
+        while(size == 0) {
+            wait();
+        }
+        return next();
+    }
+
+    /**
+     * @return next packet or null if the queue is empty
+     */
+    public synchronized T poll() {
+        return size == 0 ? null : next();
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return number of packets dropped because a class was full
+     */
+    public synchronized long getDropped() {
+        long total = 0;
+        for(long count : dropped) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return number of packets of the class dropped because it was full
+     */
+    public synchronized long getDropped(int priority) {
+        return dropped[priority];
+    }
+
+    // called with the lock held and at least one packet queued
+    private T next() {
+        while(credit == 0 || packets.get(current).isEmpty()) {
+            current = (current + 1) % packets.size();
+            credit = weights[current];
+        }
+        credit--;
+        size--;
+        return packets.get(current).poll();
+    }
+}
@@ -7,7 +7,6 @@
  */
 package org.opendaylight.router;
 
-import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
 
 import org.slf4j.Logger;
@@ -24,6 +23,9 @@ public class PacketUtil {
     }
 
     public static String byteToMacString(byte[] data) {
+        if(data != null && data.length == 6) {
+            return macToString(getMac(data, 0));
+        }
         return hexStringToColonSeparatedString(
                 bytesToHexString(data));
     }
@@ -74,7 +76,7 @@ public class PacketUtil {
 
         byte[] output = new byte[data.length()/2];
         for(int i=0; i<data.length(); i+=2) {
-            output[i/2] = (byte) ((Character.digit(data.charAt(i), 16)) |
+            output[i/2] = (byte) ((Character.digit(data.charAt(i), 16) << 4) |
                     (Character.digit(data.charAt(i+1), 16)));
         }
         return output;
@@ -120,18 +122,153 @@ public class PacketUtil {
         return val;
     }
 
-    public static byte[] replaceBytes(byte[] destination, byte[] src, int offset, int len) {
+    /**
+     * Read the 4 byte ipv4 address stored at the offset.
+     * @return ipv4 address in network order
+     */
+    public static int getIpv4(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    public static void putIpv4(byte[] data, int offset, int address) {
+        data[offset] = (byte) (address >>> 24);
+        data[offset + 1] = (byte) (address >>> 16);
+        data[offset + 2] = (byte) (address >>> 8);
+        data[offset + 3] = (byte) address;
+    }
+
+    /**
+     * Read the 6 byte mac address stored at the offset.
+     * @return mac address in the lower 48 bits
+     */
+    public static long getMac(byte[] data, int offset) {
+        return ((long) (data[offset] & 0xff) << 40)
+                | ((long) (data[offset + 1] & 0xff) << 32)
+                | (getIpv4(data, offset + 2) & 0xffffffffL);
+    }
+
+    public static void putMac(byte[] data, int offset, long mac) {
+        data[offset] = (byte) (mac >>> 40);
+        data[offset + 1] = (byte) (mac >>> 32);
+        putIpv4(data, offset + 2, (int) mac);
+    }
+
+    /**
+     * Parse the dotted quad ipv4 address without going through InetAddress.
+     * @param address ipv4 address string like 1.0.0.1
+     * @return ipv4 address in network order
+     * @throws IllegalArgumentException if the address is not a valid ipv4 address
+     */
+    public static int parseIpv4(String address) {
+        if(address == null) {
+            throw new IllegalArgumentException("ipv4 address is null");
+        }
+        int result = 0;
+        int octet = -1;
+        int dots = 0;
+        for(int i=0; i<address.length(); i++) {
+            char c = address.charAt(i);
+            if(c >= '0' && c <= '9') {
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if(octet > 255) {
+                    throw new IllegalArgumentException("invalid ipv4 address : " + address);
+                }
+            } else if(c == '.' && octet >= 0 && dots < 3) {
+                result = (result << 8) | octet;
+                octet = -1;
+                dots++;
+            } else {
+                throw new IllegalArgumentException("invalid ipv4 address : " + address);
+            }
+        }
+        if(dots != 3 || octet < 0) {
+            throw new IllegalArgumentException("invalid ipv4 address : " + address);
+        }
+        return (result << 8) | octet;
+    }
 
-        ByteArrayOutputStream outputStrem = new ByteArrayOutputStream();
-        if(offset > 0) {
-            outputStrem.write(destination, 0, offset);
+    /**
+     * Parse the mac address, with or without the colon separators.
+     * @param mac mac address string like 01:02:03:04:05:06
+     * @return mac address in the lower 48 bits
+     * @throws IllegalArgumentException if the address is not a valid mac address
+     */
+    public static long parseMac(String mac) {
+        if(mac == null) {
+            throw new IllegalArgumentException("mac address is null");
         }
+        long result = 0;
+        int digits = 0;
+        for(int i=0; i<mac.length(); i++) {
+            char c = mac.charAt(i);
+            if(c == ':' || c == '-') {
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if(digit < 0 || ++digits > 12) {
+                throw new IllegalArgumentException("invalid mac address : " + mac);
+            }
+            result = (result << 4) | digit;
+        }
+        if(digits != 12) {
+            throw new IllegalArgumentException("invalid mac address : " + mac);
+        }
+        return result;
+    }
+
+    /**
+     * @return netmask for the prefix length, /0 gives 0
+     */
+    public static int ipv4Mask(int prefixLength) {
+        return prefixLength <= 0 ? 0 : -1 << (32 - Math.min(prefixLength, 32));
+    }
+
+    /**
+     * @return network address of the ipv4 address for the prefix length
+     */
+    public static int ipv4Network(int address, int prefixLength) {
+        return address & ipv4Mask(prefixLength);
+    }
+
+    /**
+     * Convert the ipv4 address to dotted quad string. Only used at the
+     * yang and logging boundary, the packet path works on the int value.
+     * @param address ipv4 address in network order
+     * @return
+     */
+    public static String ipv4ToString(int address) {
+        return new StringBuilder(15)
+                .append((address >>> 24) & 0xff).append('.')
+                .append((address >>> 16) & 0xff).append('.')
+                .append((address >>> 8) & 0xff).append('.')
+                .append(address & 0xff)
+                .toString();
+    }
 
-        outputStrem.write(src, 0, len);
-        outputStrem.write(destination,
-                offset + len,
-                destination.length - offset - len);;
+    /**
+     * Convert the 48 bit mac address to colon separated hex string.
+     * @param mac mac address in the lower 48 bits
+     * @return
+     */
+    public static String macToString(long mac) {
+        char[] out = new char[17];
+        for(int i=0; i<6; i++) {
+            int b = (int) (mac >>> ((5 - i) * 8)) & 0xff;
+            out[i * 3] = Character.forDigit(b >>> 4, 16);
+            out[i * 3 + 1] = Character.forDigit(b & 0x0f, 16);
+            if(i < 5) {
+                out[i * 3 + 2] = ':';
+            }
+        }
+        return new String(out);
+    }
 
-                return outputStrem.toByteArray();
+    public static byte[] replaceBytes(byte[] destination, byte[] src, int offset, int len) {
+        byte[] output = Arrays.copyOf(destination, destination.length);
+        System.arraycopy(src, 0, output, offset, len);
+        return output;
     }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.router;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Interns the switch ports into small integer handles, so the tables on the
+ * packet path can store a port as a primitive instead of a port identifier.
+ * Handles start at 1 and are never re-used, so a port which comes back
+ * after its switch reconnected gets its old handle.
+ *
+ * <p>The handles aren't recycled as the address table may still hold the
+ * handle of a port which is gone, a recycled one would send its hosts'
+ * packets out of another port. So at most {@link #MAX_PORTS} distinct
+ * ports get a handle over the life of the controller, the ports seen after
+ * that get 0 and the hosts behind them aren't learnt.
+ */
+public class PortRegistry {
+    private static final Logger LOG = LoggerFactory.getLogger(PortRegistry.class);
+
+    public static final int MAX_PORTS = 0xffff;
+
+    private final ConcurrentHashMap<NodeConnectorId, Integer> handles = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<NodeConnectorId> ports = new AtomicReferenceArray<>(MAX_PORTS + 1);
+    // guarded by this
+    private int nextHandle = 1;
+    private boolean exhausted;
+
+    /**
+     * @return handle of the port, or 0 if all the handles are in use
+     */
+    public int intern(NodeConnectorId port) {
+        Integer handle = handles.get(port);
+        if(handle != null) {
+            return handle;
+        }
+        synchronized (this) {
+            handle = handles.get(port);
+            if(handle != null) {
+                return handle;
+            }
+            if(nextHandle > MAX_PORTS) {
+                if(!exhausted) {
+                    exhausted = true;
+                    LOG.warn("all the {} port handles are in use, the hosts behind {} and the new ports"
+                            + " are not learnt", MAX_PORTS, port.getValue());
+                }
+                return 0;
+            }
+            int newHandle = nextHandle++;
+            ports.set(newHandle, port);
+            handles.put(port, newHandle);
+            return newHandle;
+        }
+    }
+
+    /**
+     * @return port for the handle or null if the handle is unknown
+     */
+    public NodeConnectorId get(int handle) {
+        if(handle <= 0 || handle > MAX_PORTS) {
+            return null;
+        }
+        return ports.get(handle);
+    }
+}
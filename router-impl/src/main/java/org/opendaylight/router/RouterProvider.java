@@ -9,6 +9,11 @@
 package org.opendaylight.router;
 
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.opendaylight.controller.md.sal.binding.api.DataBroker;
 import org.opendaylight.controller.md.sal.binding.api.DataChangeListener;
@@ -19,12 +24,18 @@ import org.opendaylight.controller.md.sal.common.api.data.TransactionCommitFaile
 import org.opendaylight.controller.sal.binding.api.BindingAwareBroker.ProviderContext;
 import org.opendaylight.controller.sal.binding.api.BindingAwareProvider;
 import org.opendaylight.controller.sal.binding.api.NotificationProviderService;
+import org.opendaylight.proxyarp.ArpResolver;
+import org.opendaylight.proxyarp.ArpTable;
 import org.opendaylight.proxyarp.ProxyArp;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.SalFlatBatchService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.SalFlowService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.meter.service.rev130918.SalMeterService;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.packet.service.rev130709.PacketProcessingService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.Routes;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.Subinterfaces;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.routes.StaticRoute;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterface;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterfaceBuilder;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterfaceKey;
@@ -47,27 +58,122 @@ public class RouterProvider implements BindingAwareProvider, AutoCloseable {
     private ListenerRegistration<NotificationListener> listener;
     private ListenerRegistration<DataChangeListener> dataChangeListener;
     private ListenerRegistration<DataChangeListener> dataListenerForUserData;
+    private ListenerRegistration<DataChangeListener> dataListenerForStaticRoutes;
+    private ListenerRegistration<DataChangeListener> inventoryNodeListener;
+    private ListenerRegistration<DataChangeListener> inventoryPortListener;
 
     private DataBroker dataBroker;
     private SalFlowService salFlowService;
     private ProxyArp proxyArp;
+    private UserDataHandler userDataHandler;
+    private final InventoryCache inventory = new InventoryCache();
+    private OFSwitchTracker.FlowMode routingFlowMode = OFSwitchTracker.FlowMode.DESTINATION;
+    private long flowCommitWindow = FlowCommitQueue.DEFAULT_WINDOW;
+    private int flowCommitBatchSize = FlowCommitQueue.DEFAULT_BATCH_SIZE;
+    private long puntMeterRate = OFSwitchTracker.DEFAULT_PUNT_METER_RATE;
+    private long puntMeterBurst = OFSwitchTracker.DEFAULT_PUNT_METER_BURST;
+    private int packetInWorkers;
+    private int packetInQueueLength = PacketInDispatcher.DEFAULT_QUEUE_LENGTH;
+    private PacketQueue.DropPolicy packetInDropPolicy = PacketQueue.DropPolicy.DROP_OLDEST;
+    private final NotificationProviderService notificationProviderService;
+    private PacketInDispatcher packetInDispatcher;
+    private FlowCommitQueue flowCommitQueue;
+    // timers only: expiries, reports, commit windows, retries and rpc timeouts
+    private final ScheduledExecutorService scheduler;
+    // proactive flow installs, flow commits and their retries
+    private final ExecutorService flowExecutor = Executors.newSingleThreadExecutor();
+
+    private static final long ARP_EXPIRY_INTERVAL = 1000;
+    private static final long DROP_REPORT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
 
     private static String ROUTER_MAC_ADDRESS="10:20:30:40:50:60";
     private static InstanceIdentifier<Node> NODE_IID = InstanceIdentifier.builder(Nodes.class).child(Node.class).build();
 
     public RouterProvider(NotificationProviderService notificationProviderService, DataBroker broker) {
-        proxyArp = new ProxyArp();
-        listener = notificationProviderService.registerNotificationListener(proxyArp);
+        this(notificationProviderService, broker, new ArpTable());
+    }
+
+    public RouterProvider(NotificationProviderService notificationProviderService, DataBroker broker,
+            final ArpTable arpTable) {
+        proxyArp = new ProxyArp(arpTable);
+        final ArpResolver arpResolver = new ArpResolver();
+        proxyArp.setArpResolver(arpResolver);
+        proxyArp.setInventoryCache(inventory);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        // the timeouts of the answered rpcs are cancelled, don't keep them queued
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = executor;
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int expired = arpTable.expire();
+                    if(expired > 0) {
+                        LOG.debug("expired {} arp entries, {}", expired, arpTable);
+                    }
+                    int unresolved = arpResolver.expire();
+                    if(unresolved > 0) {
+                        LOG.debug("{} destinations didn't answer the arp request", unresolved);
+                    }
+                } catch (RuntimeException e) {
+                    LOG.warn("arp table expiry failed", e);
+                }
+            }
+        }, ARP_EXPIRY_INTERVAL, ARP_EXPIRY_INTERVAL, TimeUnit.MILLISECONDS);
+        this.notificationProviderService = notificationProviderService;
         dataBroker = broker;
 
         InstanceIdentifier<SubInterface> iid = InstanceIdentifier.create(Subinterfaces.class).child(SubInterface.class);
-        UserDataHandler userDataHandler = new UserDataHandler();
+        userDataHandler = new UserDataHandler();
         userDataHandler.setDataBroker(dataBroker);
+        proxyArp.setUserDataHandler(userDataHandler);
 
         dataListenerForUserData = dataBroker.registerDataChangeListener(LogicalDatastoreType.CONFIGURATION,
                 iid,
                 userDataHandler,
                 DataChangeScope.BASE);
+        dataListenerForStaticRoutes = dataBroker.registerDataChangeListener(LogicalDatastoreType.CONFIGURATION,
+                InstanceIdentifier.create(Routes.class).child(StaticRoute.class),
+                userDataHandler,
+                DataChangeScope.BASE);
+
+        // the packet path takes the switch and port identifiers from the cache
+        inventoryNodeListener = dataBroker.registerDataChangeListener(LogicalDatastoreType.OPERATIONAL,
+                NODE_IID,
+                inventory,
+                DataChangeScope.BASE);
+        inventoryPortListener = dataBroker.registerDataChangeListener(LogicalDatastoreType.OPERATIONAL,
+                InventoryCache.NODE_CONNECTOR_IID,
+                inventory,
+                DataChangeScope.BASE);
+    }
+
+    public void setRoutingFlowMode(OFSwitchTracker.FlowMode routingFlowMode) {
+        this.routingFlowMode = routingFlowMode;
+    }
+
+    public void setFlowCommitWindow(long flowCommitWindow) {
+        this.flowCommitWindow = flowCommitWindow;
+    }
+
+    public void setFlowCommitBatchSize(int flowCommitBatchSize) {
+        this.flowCommitBatchSize = flowCommitBatchSize;
+    }
+
+    public void setPuntMeter(long puntMeterRate, long puntMeterBurst) {
+        this.puntMeterRate = puntMeterRate;
+        this.puntMeterBurst = puntMeterBurst;
+    }
+
+    /**
+     * @param workers threads processing the received packets, 0 for one per processor
+     * @param queueLength packets queued per thread at most
+     * @param dropPolicy packet dropped when a queue is full
+     */
+    public void setPacketInWorkers(int workers, int queueLength, PacketQueue.DropPolicy dropPolicy) {
+        this.packetInWorkers = workers;
+        this.packetInQueueLength = queueLength;
+        this.packetInDropPolicy = dropPolicy;
     }
 
     @Override
@@ -77,6 +183,16 @@ public class RouterProvider implements BindingAwareProvider, AutoCloseable {
         salFlowService = session.getRpcService(SalFlowService.class);
         proxyArp.setPacketProcessingService(session.getRpcService(PacketProcessingService.class));
         OFSwitchTracker ofSwitchTracker = new OFSwitchTracker(salFlowService);
+        ofSwitchTracker.setFlowMode(routingFlowMode);
+        ofSwitchTracker.setScheduler(scheduler);
+        ofSwitchTracker.setFlowExecutor(flowExecutor);
+        ofSwitchTracker.setSalMeterService(session.getRpcService(SalMeterService.class));
+        ofSwitchTracker.setPuntMeter(puntMeterRate, puntMeterBurst);
+        ofSwitchTracker.setUserDataHandler(userDataHandler);
+        userDataHandler.setOFSwitchTracker(ofSwitchTracker);
+        flowCommitQueue = new FlowCommitQueue(session.getRpcService(SalFlatBatchService.class),
+                scheduler, flowExecutor, flowCommitWindow, flowCommitBatchSize);
+        ofSwitchTracker.setFlowCommitQueue(flowCommitQueue);
 
         dataChangeListener = dataBroker.registerDataChangeListener(LogicalDatastoreType.OPERATIONAL,
                 NODE_IID,
@@ -85,20 +201,51 @@ public class RouterProvider implements BindingAwareProvider, AutoCloseable {
 
         populateStaticData();
         proxyArp.setOFSwitchTracker(ofSwitchTracker);
-        proxyArp.setDataBroker(dataBroker);
+        proxyArp.setFlowExecutor(flowExecutor);
+        proxyArp.setScheduler(scheduler);
+
+        // the notification thread only classifies and queues the packets for the workers
+        packetInDispatcher = new PacketInDispatcher(proxyArp, proxyArp, packetInWorkers, packetInQueueLength,
+                packetInDropPolicy);
+        listener = notificationProviderService.registerNotificationListener(packetInDispatcher);
+        LOG.info("processing the received packets on {} threads", packetInDispatcher.getWorkers());
+        final PacketInDispatcher dispatcher = packetInDispatcher;
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.reportDrops();
+            }
+        }, DROP_REPORT_INTERVAL, DROP_REPORT_INTERVAL, TimeUnit.MILLISECONDS);
 
     }
 
     @Override
     public void close() throws Exception {
-        this.listener.close();
+        if(listener != null) {
+            listener.close();
+        }
+        if(packetInDispatcher != null) {
+            packetInDispatcher.close();
+        }
         dataChangeListener.close();
         dataListenerForUserData.close();
+        dataListenerForStaticRoutes.close();
+        inventoryNodeListener.close();
+        inventoryPortListener.close();
+        if(flowCommitQueue != null) {
+            flowCommitQueue.close();
+        }
+        scheduler.shutdownNow();
+        flowExecutor.shutdownNow();
 
         listener = null;
+        packetInDispatcher = null;
         dataChangeListener = null;
         salFlowService = null;
         dataListenerForUserData = null;
+        dataListenerForStaticRoutes = null;
+        inventoryNodeListener = null;
+        inventoryPortListener = null;
     }
 
     public void populateStaticData() {
@@ -107,21 +254,25 @@ public class RouterProvider implements BindingAwareProvider, AutoCloseable {
         SubInterface subinterface1 = new SubInterfaceBuilder()
                 .setInterface("veth100")
                 .setVlan(100)
-                .setIp("1.0.0.0")
+                .setIp("1.0.0.11")
+                .setPrefixLength((short) 24)
                 .setPort(Arrays.asList(new Integer(1)))
                 .setMac("00:00:00:00:00:01").build();
         writeSubinteface(subinterface1,
                 getIdentifier(subinterface1.getInterface()));
+        userDataHandler.putSubInterface(subinterface1);
 
         // subinterface 2
         SubInterface subinterface2 = new SubInterfaceBuilder()
                 .setInterface("veth200")
                 .setVlan(200)
-                .setIp("2.0.0.0")
+                .setIp("2.0.0.11")
+                .setPrefixLength((short) 8)
                 .setPort(Arrays.asList(new Integer(2)))
                 .setMac("00:00:00:00:00:02").build();
         //        writeSubinteface(subinterface2,
         //                getIdentifier(subinterface2.getInterface()));
+        //        userDataHandler.putSubInterface(subinterface2);
     }
 
     private void writeSubinteface(SubInterface subinteface,
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.router;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.JdkFutureAdapters;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Helpers turning the rpc futures into listenable futures which complete
+ * within a timeout, so the callers chain on them instead of waiting and a
+ * southbound which never answers can't hold up a retry forever.
+ */
+public final class RpcFutures {
+    public static final long DEFAULT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    // the rpc broker hands out listenable futures, a plain one is polled
+    private static final long POLL_INTERVAL = 10;
+
+    private RpcFutures() {
+    }
+
+    /**
+     * @param scheduler scheduler polling a plain future until it's done or
+     *        the listenable one is cancelled; without a scheduler the plain
+     *        future is waited for on the thread adding the first listener
+     * @return the future itself if it's listenable, otherwise a future
+     *         completing like it
+     */
+    public static <T> ListenableFuture<T> listen(Future<T> future, ScheduledExecutorService scheduler) {
+        if(future instanceof ListenableFuture) {
+            return (ListenableFuture<T>) future;
+        }
+        if(scheduler == null) {
+            return JdkFutureAdapters.listenInPoolThread(future, MoreExecutors.directExecutor());
+        }
+        SettableFuture<T> result = SettableFuture.create();
+        new Poller<>(future, result, scheduler).run();
+        return result;
+    }
+
+    /**
+     * @param scheduler scheduler of the timeout, null for no timeout
+     * @return future completing like the future, or failing with a
+     *         TimeoutException, after which the future is cancelled, if the
+     *         future isn't done within the timeout
+     */
+    public static <T> ListenableFuture<T> withTimeout(final ListenableFuture<T> future, long timeout,
+            TimeUnit unit, ScheduledExecutorService scheduler) {
+        if(scheduler == null || future.isDone()) {
+            return future;
+        }
+        final SettableFuture<T> result = SettableFuture.create();
+        final ScheduledFuture<?> timer;
+        try {
+            timer = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if(result.setException(new TimeoutException("no answer within the timeout"))) {
+                        future.cancel(false);
+                    }
+                }
+            }, timeout, unit);
+        } catch (RejectedExecutionException e) {
+            return future;
+        }
+
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                timer.cancel(false);
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                timer.cancel(false);
+                result.setException(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    private static final class Poller<T> implements Runnable {
+        private final Future<T> future;
+        private final SettableFuture<T> result;
+        private final ScheduledExecutorService scheduler;
+
+        Poller(Future<T> future, SettableFuture<T> result, ScheduledExecutorService scheduler) {
+            this.future = future;
+            this.result = result;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void run() {
+            if(result.isDone()) {
+                // timed out or cancelled
+                future.cancel(false);
+                return;
+            }
+            if(!future.isDone()) {
+                try {
+                    scheduler.schedule(this, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    future.cancel(false);
+                    result.setException(e);
+                }
+                return;
+            }
+            try {
+                result.set(Uninterruptibles.getUninterruptibly(future));
+            } catch (ExecutionException e) {
+                result.setException(e.getCause());
+            } catch (CancellationException e) {
+                result.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2015 Yoyodyne, Inc. and others.  All rights reserved.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License v1.0 which accompanies this distribution,
+ * and is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.opendaylight.router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.routes.StaticRoute;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterface;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable snapshot of the configured sub-interfaces and static routes,
+ * indexed for the lookups done on the packet path. A new snapshot is built
+ * whenever the configuration changes, so the readers never need a lock or a
+ * datastore transaction.
+ */
+public final class SubInterfaceIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(SubInterfaceIndex.class);
+    private static final int VLAN_WORDS = 4096 / 64;
+    private static final int DEFAULT_PREFIX_LENGTH = 24;
+
+    public static final SubInterfaceIndex EMPTY = new SubInterfaceIndex(Collections.<SubInterface>emptyList(),
+            Collections.<StaticRoute>emptyList());
+
+    private final Map<Integer, SubInterface> vlans = new HashMap<>();
+    // host address of the sub-interface by vlan, the router's own
+    private final Map<Integer, Integer> addresses = new HashMap<>();
+    private final Ipv4RoutingTable<Route> routes = new Ipv4RoutingTable<>();
+    private final Map<Integer, List<Route>> routesByNextHop = new HashMap<>();
+    // allowed vlans bitset per port number
+    private final long[][] portVlans;
+    private final int size;
+
+    private SubInterfaceIndex(Collection<SubInterface> subInterfaces, Collection<StaticRoute> staticRoutes) {
+        int maxPort = -1;
+        for(SubInterface subInterface : subInterfaces) {
+            if(subInterface.getPort() != null) {
+                for(Integer port : subInterface.getPort()) {
+                    maxPort = Math.max(maxPort, port);
+                }
+            }
+        }
+        portVlans = new long[maxPort + 1][];
+
+        for(SubInterface subInterface : subInterfaces) {
+            if(subInterface.getVlan() == null) {
+                LOG.debug("ignoring subinterface {} without vlan", subInterface.getInterface());
+                continue;
+            }
+            int vlan = subInterface.getVlan() & 0xfff;
+            vlans.put(vlan, subInterface);
+
+            if(subInterface.getPort() != null) {
+                for(Integer port : subInterface.getPort()) {
+                    long[] bits = portVlans[port];
+                    if(bits == null) {
+                        bits = portVlans[port] = new long[VLAN_WORDS];
+                    }
+                    bits[vlan >>> 6] |= 1L << vlan;
+                }
+            }
+
+            if(subInterface.getIp() != null) {
+                try {
+                    int prefixLength = subInterface.getPrefixLength() == null ? DEFAULT_PREFIX_LENGTH
+                            : subInterface.getPrefixLength();
+                    int address = PacketUtil.parseIpv4(subInterface.getIp());
+                    int prefix = PacketUtil.ipv4Network(address, prefixLength);
+                    routes.add(prefix, prefixLength, new Route(subInterface, prefix, prefixLength, 0));
+                    if(isHostAddress(address, prefixLength)) {
+                        addresses.put(vlan, address);
+                    }
+                } catch (IllegalArgumentException e) {
+                    LOG.warn("invalid ip address {} on subinterface {}", subInterface.getIp(),
+                            subInterface.getInterface());
+                }
+            }
+        }
+        size = vlans.size();
+
+        // the next hops are resolved with the connected routes only
+        List<Route> resolved = new ArrayList<>();
+        for(StaticRoute staticRoute : staticRoutes) {
+            try {
+                String[] prefix = staticRoute.getPrefix().getValue().split("/");
+                int nextHop = PacketUtil.parseIpv4(staticRoute.getNextHop().getValue());
+                Route connected = routes.lookup(nextHop);
+                if(connected == null || connected.getNextHop() != 0) {
+                    LOG.warn("next hop of static route {} is not on a subinterface", staticRoute.getPrefix());
+                    continue;
+                }
+                int prefixLength = Integer.parseInt(prefix[1]);
+                resolved.add(new Route(connected.getSubInterface(),
+                        PacketUtil.ipv4Network(PacketUtil.parseIpv4(prefix[0]), prefixLength),
+                        prefixLength, nextHop));
+            } catch (RuntimeException e) {
+                LOG.warn("invalid static route {}", staticRoute, e);
+            }
+        }
+        for(Route route : resolved) {
+            routes.add(route.getPrefix(), route.getPrefixLength(), route);
+            List<Route> via = routesByNextHop.get(route.getNextHop());
+            if(via == null) {
+                via = new ArrayList<>();
+                routesByNextHop.put(route.getNextHop(), via);
+            }
+            via.add(route);
+        }
+    }
+
+    public static SubInterfaceIndex build(Collection<SubInterface> subInterfaces) {
+        return build(subInterfaces, Collections.<StaticRoute>emptyList());
+    }
+
+    public static SubInterfaceIndex build(Collection<SubInterface> subInterfaces,
+            Collection<StaticRoute> staticRoutes) {
+        return subInterfaces.isEmpty() ? EMPTY : new SubInterfaceIndex(subInterfaces, staticRoutes);
+    }
+
+    /**
+     * @return true if a sub-interface on the vlan includes the port
+     */
+    public boolean isVlanAllowed(int port, int vlan) {
+        if(port < 0 || port >= portVlans.length || vlan < 0 || vlan > 0xfff) {
+            return false;
+        }
+        long[] bits = portVlans[port];
+        return bits != null && (bits[vlan >>> 6] & (1L << vlan)) != 0;
+    }
+
+    /**
+     * @return port numbers on which at least one vlan is allowed
+     */
+    public int[] getPorts() {
+        int[] ports = new int[portVlans.length];
+        int count = 0;
+        for(int port=0; port<portVlans.length; port++) {
+            if(portVlans[port] != null) {
+                ports[count++] = port;
+            }
+        }
+        return Arrays.copyOf(ports, count);
+    }
+
+    /**
+     * @return vlans allowed on the port, in ascending order
+     */
+    public int[] getVlans(int port) {
+        if(port < 0 || port >= portVlans.length || portVlans[port] == null) {
+            return new int[0];
+        }
+        long[] bits = portVlans[port];
+        int count = 0;
+        for(long word : bits) {
+            count += Long.bitCount(word);
+        }
+        int[] allowed = new int[count];
+        int i = 0;
+        for(int word=0; word<bits.length; word++) {
+            for(long w = bits[word]; w != 0; w &= w - 1) {
+                allowed[i++] = (word << 6) + Long.numberOfTrailingZeros(w);
+            }
+        }
+        return allowed;
+    }
+
+    public SubInterface getByVlan(int vlan) {
+        return vlans.get(vlan);
+    }
+
+    /**
+     * @return longest prefix match route for the ip address or null
+     */
+    public Route getRoute(int ip) {
+        return routes.lookup(ip);
+    }
+
+    /**
+     * @return static routes using the address as next hop
+     */
+    public List<Route> getRoutesVia(int nextHop) {
+        List<Route> via = routesByNextHop.get(nextHop);
+        return via == null ? Collections.<Route>emptyList() : Collections.unmodifiableList(via);
+    }
+
+    /**
+     * @return egress sub-interface for the ip address or null
+     */
+    public SubInterface getForIp(int ip) {
+        Route route = routes.lookup(ip);
+        return route == null ? null : route.getSubInterface();
+    }
+
+    /**
+     * @return address of the router on the sub-interface of the vlan, 0 if
+     *         it's not set or it's the network or the broadcast address
+     */
+    public int getAddress(int vlan) {
+        Integer address = addresses.get(vlan);
+        return address == null ? 0 : address;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static boolean isHostAddress(int address, int prefixLength) {
+        if(prefixLength >= 31) {
+            // point to point, both addresses are hosts
+            return address != 0;
+        }
+        int host = address & ~PacketUtil.ipv4Mask(prefixLength);
+        return host != 0 && host != ~PacketUtil.ipv4Mask(prefixLength);
+    }
+
+    @Override
+    public String toString() {
+        return "SubInterfaceIndex [vlans=" + vlans.keySet() + ", routes=" + routes.size() + "]";
+    }
+
+    public static final class Route {
+        private final SubInterface subInterface;
+        private final int prefix;
+        private final int prefixLength;
+        private final int nextHop;
+
+        Route(SubInterface subInterface, int prefix, int prefixLength, int nextHop) {
+            this.subInterface = subInterface;
+            this.prefix = prefix;
+            this.prefixLength = prefixLength;
+            this.nextHop = nextHop;
+        }
+
+        public SubInterface getSubInterface() {
+            return subInterface;
+        }
+
+        public int getPrefix() {
+            return prefix;
+        }
+
+        public int getPrefixLength() {
+            return prefixLength;
+        }
+
+        /**
+         * @return next hop address, 0 if the destination is directly connected
+         */
+        public int getNextHop() {
+            return nextHop;
+        }
+    }
+}
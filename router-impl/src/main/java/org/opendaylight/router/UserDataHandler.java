@@ -7,6 +7,7 @@
  */
 package org.opendaylight.router;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -17,7 +18,10 @@ import org.opendaylight.controller.md.sal.binding.api.WriteTransaction;
 import org.opendaylight.controller.md.sal.common.api.data.AsyncDataChangeEvent;
 import org.opendaylight.controller.md.sal.common.api.data.LogicalDatastoreType;
 import org.opendaylight.controller.md.sal.common.api.data.TransactionCommitFailedException;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.routes.StaticRoute;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.routes.StaticRouteKey;
 import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterface;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterfaceKey;
 import org.opendaylight.yangtools.yang.binding.DataObject;
 import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
 import org.slf4j.Logger;
@@ -32,15 +36,62 @@ public class UserDataHandler implements DataChangeListener{
     private static final Logger LOG = LoggerFactory.getLogger(UserDataHandler.class);
     private DataBroker dataBroker;
 
+    // configured sub-interfaces by name and static routes by prefix, guarded by this
+    private final Map<String, SubInterface> subInterfaces = new HashMap<>();
+    private final Map<String, StaticRoute> staticRoutes = new HashMap<>();
+    private volatile SubInterfaceIndex subInterfaceIndex = SubInterfaceIndex.EMPTY;
+    private volatile OFSwitchTracker ofSwitchTracker;
+
     public void setDataBroker(DataBroker dataBroker) {
         this.dataBroker = dataBroker;
     }
 
+    /**
+     * @param ofSwitchTracker tracker whose admission flows follow the sub-interfaces
+     */
+    public void setOFSwitchTracker(OFSwitchTracker ofSwitchTracker) {
+        this.ofSwitchTracker = ofSwitchTracker;
+    }
+
+    /**
+     * @return latest snapshot of the sub-interfaces, safe to use from any thread
+     */
+    public SubInterfaceIndex getSubInterfaceIndex() {
+        return subInterfaceIndex;
+    }
+
+    /**
+     * Add or replace the sub-interface in the index without touching the
+     * datastore.
+     */
+    public synchronized void putSubInterface(SubInterface subInterface) {
+        subInterfaces.put(subInterface.getInterface(), subInterface);
+        publishIndex();
+    }
+
+    public synchronized void removeSubInterface(String name) {
+        if(subInterfaces.remove(name) != null) {
+            publishIndex();
+        }
+    }
+
     @Override
     public void onDataChanged(AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> dataChangeNotification) {
         handleCreatedData(dataChangeNotification.getCreatedData());
         handleUpdatedData(dataChangeNotification.getUpdatedData());
         handleDeletedData(dataChangeNotification.getRemovedPaths());
+        synchronized (this) {
+            publishIndex();
+        }
+    }
+
+    private void publishIndex() {
+        subInterfaceIndex = SubInterfaceIndex.build(subInterfaces.values(), staticRoutes.values());
+        LOG.debug("published {}", subInterfaceIndex);
+        OFSwitchTracker tracker = ofSwitchTracker;
+        if(tracker != null) {
+            tracker.updateAdmissionFlows();
+        }
     }
 
     public void handleCreatedData(Map<InstanceIdentifier<?>, DataObject> createdData) {
@@ -56,20 +107,45 @@ public class UserDataHandler implements DataChangeListener{
     public void handleDeletedData(Set<InstanceIdentifier<?>> setRemovedpath) {
         LOG.info("some data got for deletion: {}", setRemovedpath);
         setRemovedpath.forEach(p -> deleteDataFromOprDataStore(p));
+        synchronized (this) {
+            for(InstanceIdentifier<?> path : setRemovedpath) {
+                SubInterfaceKey key = path.firstKeyOf(SubInterface.class);
+                if(key != null) {
+                    subInterfaces.remove(key.getInterface());
+                }
+                StaticRouteKey routeKey = path.firstKeyOf(StaticRoute.class);
+                if(routeKey != null) {
+                    staticRoutes.remove(routeKey.getPrefix().getValue());
+                }
+            }
+        }
     }
 
     private void createOrUpdateOprData(Map<InstanceIdentifier<?>, DataObject> createdOrUpdatedData) {
         for(Entry<InstanceIdentifier<?>, DataObject> entry: createdOrUpdatedData.entrySet()) {
-            InstanceIdentifier<SubInterface> subInterfaceIID = (InstanceIdentifier<SubInterface>) entry.getKey();
-            SubInterface subInterface = (SubInterface) entry.getValue();
-
-            // write the info to the operational data store
-            writeDataToOperationDataStore(subInterfaceIID, subInterface);
+            if(entry.getValue() instanceof SubInterface) {
+                InstanceIdentifier<SubInterface> subInterfaceIID = (InstanceIdentifier<SubInterface>) entry.getKey();
+                SubInterface subInterface = (SubInterface) entry.getValue();
+
+                // write the info to the operational data store
+                writeDataToOperationDataStore(subInterfaceIID, subInterface);
+                synchronized (this) {
+                    subInterfaces.put(subInterface.getInterface(), subInterface);
+                }
+            } else if(entry.getValue() instanceof StaticRoute) {
+                InstanceIdentifier<StaticRoute> routeIID = (InstanceIdentifier<StaticRoute>) entry.getKey();
+                StaticRoute staticRoute = (StaticRoute) entry.getValue();
+
+                writeDataToOperationDataStore(routeIID, staticRoute);
+                synchronized (this) {
+                    staticRoutes.put(staticRoute.getPrefix().getValue(), staticRoute);
+                }
+            }
         }
     }
-    public void writeDataToOperationDataStore(InstanceIdentifier<SubInterface> subInterfaceIID, SubInterface subInterface) {
+    public <T extends DataObject> void writeDataToOperationDataStore(InstanceIdentifier<T> iid, T data) {
         WriteTransaction wtx = dataBroker.newWriteOnlyTransaction();
-        wtx.merge(LogicalDatastoreType.OPERATIONAL, subInterfaceIID, subInterface);
+        wtx.merge(LogicalDatastoreType.OPERATIONAL, iid, data);
         CheckedFuture<Void, TransactionCommitFailedException> future = wtx.submit();
 
         Futures.addCallback(future, new FutureCallback<Void>() {
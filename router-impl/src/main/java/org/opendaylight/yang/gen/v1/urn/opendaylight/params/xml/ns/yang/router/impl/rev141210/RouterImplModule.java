@@ -1,6 +1,12 @@
 
 package org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.impl.rev141210;
 
+import java.util.concurrent.TimeUnit;
+
+import org.opendaylight.controller.config.api.JmxAttributeValidationException;
+import org.opendaylight.proxyarp.ArpTable;
+import org.opendaylight.router.OFSwitchTracker;
+import org.opendaylight.router.PacketQueue;
 import org.opendaylight.router.RouterProvider;
 
 public class RouterImplModule extends org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.impl.rev141210.AbstractRouterImplModule {
@@ -15,13 +21,36 @@ public class RouterImplModule extends org.opendaylight.yang.gen.v1.urn.opendayli
     @Override
     public void customValidation() {
         // add custom validation form module attributes here.
+        JmxAttributeValidationException.checkCondition(getArpTableCapacity() <= Integer.MAX_VALUE,
+                "must fit into an int", arpTableCapacityJmxAttribute);
+        JmxAttributeValidationException.checkCondition(getPacketInQueueLength() <= Integer.MAX_VALUE,
+                "must fit into an int", packetInQueueLengthJmxAttribute);
     }
 
     @Override
     public java.lang.AutoCloseable createInstance() {
 
+        ArpTable arpTable = new ArpTable(getArpTableCapacity().intValue(),
+                TimeUnit.SECONDS.toMillis(getArpAgingTime()));
         RouterProvider provider = new RouterProvider(getNotificationServiceDependency(),
-                getDataBrokerDependency());
+                getDataBrokerDependency(), arpTable);
+        switch(getRoutingFlowMode()) {
+        case HostPair:
+            provider.setRoutingFlowMode(OFSwitchTracker.FlowMode.HOST_PAIR);
+            break;
+        case Subnet:
+            provider.setRoutingFlowMode(OFSwitchTracker.FlowMode.SUBNET);
+            break;
+        default:
+            provider.setRoutingFlowMode(OFSwitchTracker.FlowMode.DESTINATION);
+            break;
+        }
+        provider.setFlowCommitWindow(getFlowCommitWindow());
+        provider.setFlowCommitBatchSize(getFlowCommitBatchSize());
+        provider.setPuntMeter(getPuntMeterRate(), getPuntMeterBurst());
+        provider.setPacketInWorkers(getPacketInWorkers(), getPacketInQueueLength().intValue(),
+                getPacketInDropPolicy() == PacketInDropPolicy.DropNewest
+                        ? PacketQueue.DropPolicy.DROP_NEWEST : PacketQueue.DropPolicy.DROP_OLDEST);
         getBrokerDependency().registerProvider(provider);
         return provider;
     }
@@ -0,0 +1,90 @@
+package org.opendaylight.app.test;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.opendaylight.proxyarp.ArpResolver;
+import org.opendaylight.proxyarp.ArpResolver.Result;
+
+import junit.framework.Assert;
+
+public class ArpResolverTest {
+    @Test
+    public void testResolve() {
+        ManualClockArpResolver resolver = new ManualClockArpResolver(2, 1000, 3000, 10000);
+        byte[] first = new byte[100];
+        byte[] second = new byte[100];
+
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(100, 0x01000001, first));
+        Assert.assertEquals(Result.QUEUED, resolver.enqueue(100, 0x01000001, second));
+        // the queue of the destination is full
+        Assert.assertEquals(Result.DROPPED, resolver.enqueue(100, 0x01000001, new byte[100]));
+        // another vlan is another destination
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(200, 0x01000001, null));
+        Assert.assertEquals(2, resolver.getPendingDestinations());
+        Assert.assertEquals(200, resolver.getQueuedBytes());
+
+        List<byte[]> packets = resolver.resolved(100, 0x01000001);
+        Assert.assertEquals(2, packets.size());
+        Assert.assertSame(first, packets.get(0));
+        Assert.assertSame(second, packets.get(1));
+        Assert.assertEquals(0, resolver.getQueuedBytes());
+        Assert.assertTrue(resolver.resolved(100, 0x01000001).isEmpty());
+        Assert.assertTrue(resolver.resolved(100, 0x01000002).isEmpty());
+
+        // once resolved, a new miss asks again
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(100, 0x01000001, first));
+    }
+
+    @Test
+    public void testMemoryLimit() {
+        ManualClockArpResolver resolver = new ManualClockArpResolver(10, 250, 3000, 10000);
+
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(100, 1, new byte[100]));
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(100, 2, new byte[100]));
+        // the request is still needed even if the packet doesn't fit
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(100, 3, new byte[100]));
+        Assert.assertEquals(Result.DROPPED, resolver.enqueue(100, 1, new byte[100]));
+        Assert.assertEquals(Result.QUEUED, resolver.enqueue(100, 1, new byte[50]));
+        Assert.assertEquals(250, resolver.getQueuedBytes());
+        Assert.assertTrue(resolver.resolved(100, 3).isEmpty());
+    }
+
+    @Test
+    public void testTimeout() {
+        ManualClockArpResolver resolver = new ManualClockArpResolver(10, 1000, 3000, 10000);
+
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(100, 1, new byte[100]));
+        resolver.now = 1000;
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(100, 2, new byte[100]));
+
+        resolver.now = 3000;
+        Assert.assertEquals(1, resolver.expire());
+        Assert.assertEquals(1, resolver.getPendingDestinations());
+        Assert.assertEquals(100, resolver.getQueuedBytes());
+
+        // negative cache
+        Assert.assertEquals(Result.UNREACHABLE, resolver.enqueue(100, 1, new byte[100]));
+        resolver.now = 13000;
+        Assert.assertEquals(1, resolver.expire());
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(100, 1, new byte[100]));
+
+        // learning the destination clears its negative entry
+        Assert.assertEquals(Result.UNREACHABLE, resolver.enqueue(100, 2, null));
+        resolver.resolved(100, 2);
+        Assert.assertEquals(Result.REQUEST, resolver.enqueue(100, 2, null));
+    }
+
+    private static class ManualClockArpResolver extends ArpResolver {
+        long now;
+
+        ManualClockArpResolver(int queueLength, long maxBytes, long timeout, long negativeTime) {
+            super(queueLength, maxBytes, timeout, negativeTime);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.opendaylight.app.test;
+
+import org.junit.Test;
+import org.opendaylight.proxyarp.ArpTable;
+import org.opendaylight.proxyarp.TimerWheel;
+
+import junit.framework.Assert;
+
+public class ArpTableTest {
+    @Test
+    public void testPutAndGet() {
+        ArpTable table = new ArpTable();
+
+        Assert.assertTrue(table.put(100, 0x01000001, 0x56b669d88dd9L, 1));
+        Assert.assertFalse(table.put(100, 0x01000001, 0x56b669d88dd9L, 1));
+        Assert.assertTrue(table.put(100, 0x01000001, 0x56b669d88dd9L, 2));
+
+        long entry = table.get(100, 0x01000001);
+        Assert.assertEquals(0x56b669d88dd9L, ArpTable.macOf(entry));
+        Assert.assertEquals(2, ArpTable.portOf(entry));
+        Assert.assertEquals(100, table.lookupVlan(0x01000001));
+        Assert.assertEquals(ArpTable.NO_ENTRY, table.get(200, 0x01000001));
+        Assert.assertEquals(-1, table.lookupVlan(0x01000002));
+        Assert.assertEquals(1, table.size());
+
+        // 0.0.0.0 is used by arp probes and is never learnt
+        Assert.assertFalse(table.put(100, 0, 0x56b669d88dd9L, 1));
+    }
+
+    @Test
+    public void testLearn() {
+        ManualClockArpTable table = new ManualClockArpTable(16, 10000);
+
+        Assert.assertTrue(table.learn(100, 1, 0x56b669d88dd9L, 1));
+        Assert.assertFalse(table.learn(100, 1, 0x56b669d88dd9L, 1));
+        // moved
+        Assert.assertTrue(table.learn(100, 1, 0x56b669d88dd9L, 2));
+        Assert.assertEquals(2, ArpTable.portOf(table.get(100, 1)));
+        Assert.assertFalse(table.learn(100, 0, 0x56b669d88dd9L, 1));
+
+        // an unchanged entry keeps aging when it's only learnt again
+        table.now = 5000;
+        Assert.assertFalse(table.learn(100, 1, 0x56b669d88dd9L, 2));
+        table.now = 11000;
+        Assert.assertEquals(1, table.expire());
+        Assert.assertTrue(table.learn(100, 1, 0x56b669d88dd9L, 2));
+    }
+
+    @Test
+    public void testRemoveAndGrow() {
+        ArpTable table = new ArpTable();
+        for(int i=1; i<=10000; i++) {
+            Assert.assertTrue(table.put(i & 0xfff, i, i, (i & 0xffff) == 0 ? 1 : i & 0xffff));
+        }
+        Assert.assertEquals(10000, table.size());
+
+        for(int i=1; i<=10000; i+=2) {
+            Assert.assertTrue(table.remove(i & 0xfff, i));
+        }
+        Assert.assertEquals(5000, table.size());
+
+        for(int i=1; i<=10000; i++) {
+            long entry = table.get(i & 0xfff, i);
+            if(i % 2 == 1) {
+                Assert.assertEquals(ArpTable.NO_ENTRY, entry);
+                Assert.assertEquals(-1, table.lookupVlan(i));
+            } else {
+                Assert.assertEquals(i, ArpTable.macOf(entry));
+                Assert.assertEquals(i & 0xfff, table.lookupVlan(i));
+            }
+        }
+
+        // re-adding removed keys works after the tombstones
+        for(int i=1; i<=10000; i+=2) {
+            Assert.assertTrue(table.put(i & 0xfff, i, i + 1, 1));
+        }
+        Assert.assertEquals(10000, table.size());
+        Assert.assertEquals(2, ArpTable.macOf(table.get(1, 1)));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final ArpTable table = new ArpTable();
+        final boolean[] failed = new boolean[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(int n=0; n<200; n++) {
+                    for(int i=1; i<=2000; i++) {
+                        long entry = table.get(7, i);
+                        if(entry != ArpTable.NO_ENTRY && ArpTable.macOf(entry) != i) {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        for(int n=0; n<20; n++) {
+            for(int i=1; i<=2000; i++) {
+                table.put(7, i, i, 1);
+            }
+            for(int i=1; i<=2000; i++) {
+                table.remove(7, i);
+            }
+        }
+        reader.join();
+        Assert.assertFalse(failed[0]);
+    }
+
+    @Test
+    public void testAging() {
+        ManualClockArpTable table = new ManualClockArpTable(1024, 10000);
+        table.put(100, 1, 1, 1);
+        table.put(100, 2, 2, 1);
+
+        table.now = 5000;
+        // learnt again, restarts the aging of the entry
+        Assert.assertFalse(table.put(100, 2, 2, 1));
+        Assert.assertEquals(0, table.expire());
+
+        table.now = 12000;
+        Assert.assertEquals(1, table.expire());
+        Assert.assertEquals(ArpTable.NO_ENTRY, table.get(100, 1));
+        Assert.assertEquals(2, ArpTable.macOf(table.get(100, 2)));
+
+        table.now = 17000;
+        Assert.assertEquals(1, table.expire());
+        Assert.assertEquals(0, table.size());
+        Assert.assertEquals(2, table.getExpirations());
+    }
+
+    @Test
+    public void testCapacity() {
+        ArpTable table = new ArpTable(16 * 4, 0);
+        for(int i=1; i<=10000; i++) {
+            table.put(1, i, i, 1);
+        }
+        Assert.assertTrue(table.size() <= 16 * 4);
+        Assert.assertEquals(10000 - table.size(), table.getEvictions());
+        Assert.assertEquals(10000, ArpTable.macOf(table.get(1, 10000)));
+        Assert.assertEquals(0, table.expire());
+
+        // the segments share the capacity evenly
+        Assert.assertEquals(16 * 4, table.getCapacity());
+        table = new ArpTable(1000, 0);
+        Assert.assertEquals(1008, table.getCapacity());
+        for(int i=1; i<=10000; i++) {
+            table.put(1, i, i, 1);
+        }
+        Assert.assertTrue(table.size() <= 1008);
+    }
+
+    @Test
+    public void testStaleTimers() {
+        ManualClockArpTable table = new ManualClockArpTable(16, 10000);
+        for(int i=1; i<=10000; i++) {
+            table.put(1, i, i, 1);
+        }
+        // the evicted entries don't keep their timers until the deadline
+        Assert.assertEquals(10000 - 16, table.getEvictions());
+        Assert.assertTrue(table.getTimers() <= 2 * table.getCapacity() + 1);
+
+        // nor does a key which is removed and learnt again
+        for(int i=0; i<1000; i++) {
+            Assert.assertTrue(table.remove(1, 10000));
+            Assert.assertTrue(table.put(1, 10000, 10000, 1));
+        }
+        Assert.assertTrue(table.getTimers() <= 2 * table.getCapacity() + 1);
+
+        table.now = 11000;
+        Assert.assertEquals(16, table.expire());
+        Assert.assertEquals(0, table.size());
+        Assert.assertEquals(0, table.getTimers());
+    }
+
+    @Test
+    public void testTimerWheelPurge() {
+        TimerWheel wheel = new TimerWheel(0);
+        for(int i=1; i<=100; i++) {
+            wheel.schedule(i, i * 100);
+        }
+        TimerWheel.Filter even = new TimerWheel.Filter() {
+            @Override
+            public boolean isLive(long item, long deadline) {
+                return item % 2 == 0;
+            }
+        };
+        Assert.assertEquals(0, wheel.purge(100, even));
+        Assert.assertEquals(50, wheel.purge(50, even));
+        Assert.assertEquals(50, wheel.size());
+
+        final int[] fired = new int[1];
+        wheel.advance(1L << 25, new TimerWheel.ExpiryHandler() {
+            @Override
+            public void expired(long item, long deadline) {
+                Assert.assertEquals(0, item % 2);
+                Assert.assertEquals(item * 100, deadline);
+                fired[0]++;
+            }
+        });
+        Assert.assertEquals(50, fired[0]);
+    }
+
+    @Test
+    public void testTimerWheel() {
+        final long[] fired = new long[100000];
+        TimerWheel wheel = new TimerWheel(0);
+        for(int i=1; i<fired.length; i++) {
+            wheel.schedule(i, i);
+        }
+        // beyond the range of the wheel
+        wheel.schedule(0, 1L << 25);
+        Assert.assertEquals(fired.length, wheel.size());
+
+        TimerWheel.ExpiryHandler handler = new TimerWheel.ExpiryHandler() {
+            @Override
+            public void expired(long item, long deadline) {
+                fired[(int) item] = deadline;
+            }
+        };
+        wheel.advance(fired.length / 2, handler);
+        Assert.assertEquals(fired.length / 2, wheel.size());
+        wheel.advance(1L << 25, handler);
+        Assert.assertEquals(0, wheel.size());
+        for(int i=0; i<fired.length; i++) {
+            Assert.assertEquals(i == 0 ? 1L << 25 : i, fired[i]);
+        }
+    }
+
+    private static class ManualClockArpTable extends ArpTable {
+        long now;
+
+        ManualClockArpTable(int capacity, long agingTime) {
+            super(capacity, agingTime);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.opendaylight.app.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.opendaylight.router.FlowCommitQueue;
+import org.opendaylight.router.RpcFutures;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.ProcessFlatBatchInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.ProcessFlatBatchOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.ProcessFlatBatchOutputBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.SalFlatBatchService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.Batch;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.FlatBatchAddFlowCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.FlatBatchRemoveFlowCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.flat.batch.add.flow._case.FlatBatchAddFlow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.input.batch.batch.choice.flat.batch.remove.flow._case.FlatBatchRemoveFlow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flat.batch.service.rev160321.process.flat.batch.output.BatchFailureBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.FlowBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import junit.framework.Assert;
+
+public class FlowCommitQueueTest {
+    private static final NodeId SWITCH = new NodeId("openflow:1");
+
+    @Test
+    public void testCoalesce() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        FakeFlatBatchService service = new FakeFlatBatchService();
+        FlowCommitQueue queue = new FlowCommitQueue(service, scheduler, 10, 256);
+
+        // an add removed within the window is never sent
+        ListenableFuture<Void> add = queue.addFlow(SWITCH, flow("f1", 100));
+        ListenableFuture<Void> remove = queue.removeFlow(SWITCH, flow("f1", 100));
+        Assert.assertTrue(add.isCancelled());
+        Assert.assertTrue(remove.isCancelled());
+
+        // the last change of a flow wins
+        ListenableFuture<Void> first = queue.addFlow(SWITCH, flow("f2", 100));
+        ListenableFuture<Void> second = queue.addFlow(SWITCH, flow("f2", 132));
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(1, service.inputs.size());
+        List<Batch> batches = service.inputs.get(0).getBatch();
+        Assert.assertEquals(1, batches.size());
+        List<FlatBatchAddFlow> adds = ((FlatBatchAddFlowCase) batches.get(0).getBatchChoice())
+                .getFlatBatchAddFlow();
+        Assert.assertEquals(1, adds.size());
+        Assert.assertEquals(132, adds.get(0).getPriority().intValue());
+
+        Assert.assertFalse(first.isDone());
+        service.answers.get(0).set(RpcResultBuilder.<ProcessFlatBatchOutput>success().build());
+        Assert.assertNull(first.get());
+        Assert.assertNull(second.get());
+    }
+
+    @Test
+    public void testRemoveInstalledFlow() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        FakeFlatBatchService service = new FakeFlatBatchService();
+        FlowCommitQueue queue = new FlowCommitQueue(service, scheduler, 10, 256);
+
+        ListenableFuture<Void> v1 = queue.addFlow(SWITCH, flow("f1", 100));
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        service.answers.get(0).set(RpcResultBuilder.<ProcessFlatBatchOutput>success().build());
+        Assert.assertNull(v1.get());
+
+        // v1 is installed, the remove of the same id has to reach the switch
+        ListenableFuture<Void> v2 = queue.addFlow(SWITCH, flow("f1", 132));
+        ListenableFuture<Void> remove = queue.removeFlow(SWITCH, flow("f1", 132));
+        Assert.assertTrue(v2.isCancelled());
+        Assert.assertFalse(remove.isDone());
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(2, service.inputs.size());
+        List<Batch> batches = service.inputs.get(1).getBatch();
+        Assert.assertEquals(1, batches.size());
+        List<FlatBatchRemoveFlow> removes = ((FlatBatchRemoveFlowCase) batches.get(0).getBatchChoice())
+                .getFlatBatchRemoveFlow();
+        Assert.assertEquals(1, removes.size());
+        Assert.assertEquals("f1", removes.get(0).getFlowId().getValue());
+        service.answers.get(1).set(RpcResultBuilder.<ProcessFlatBatchOutput>success().build());
+        Assert.assertNull(remove.get());
+
+        // once the remove is acknowledged the id is unknown to the switch again
+        ListenableFuture<Void> add = queue.addFlow(SWITCH, flow("f1", 100));
+        Assert.assertTrue(queue.removeFlow(SWITCH, flow("f1", 100)).isCancelled());
+        Assert.assertTrue(add.isCancelled());
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(2, service.inputs.size());
+    }
+
+    @Test
+    public void testFlushOnWindow() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        FakeFlatBatchService service = new FakeFlatBatchService();
+        FlowCommitQueue queue = new FlowCommitQueue(service, scheduler, 10, 256);
+
+        queue.addFlow(SWITCH, flow("f1", 100));
+        scheduler.advance(5, TimeUnit.MILLISECONDS);
+        queue.addFlow(SWITCH, flow("f2", 100));
+        scheduler.advance(4, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(service.inputs.isEmpty());
+
+        // the window starts with the first change
+        scheduler.advance(1, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(1, service.inputs.size());
+        List<FlatBatchAddFlow> adds = ((FlatBatchAddFlowCase) service.inputs.get(0).getBatch().get(0)
+                .getBatchChoice()).getFlatBatchAddFlow();
+        Assert.assertEquals(2, adds.size());
+        Assert.assertEquals("f1", adds.get(0).getFlowId().getValue());
+        Assert.assertEquals("f2", adds.get(1).getFlowId().getValue());
+        // one barrier, after the last change
+        Assert.assertEquals(Boolean.FALSE, adds.get(0).isBarrier());
+        Assert.assertEquals(Boolean.TRUE, adds.get(1).isBarrier());
+    }
+
+    @Test
+    public void testCommitOnExecutor() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        FakeFlatBatchService service = new FakeFlatBatchService();
+        final List<Runnable> tasks = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                tasks.add(task);
+            }
+        };
+        FlowCommitQueue queue = new FlowCommitQueue(service, scheduler, executor, 10, 256);
+
+        // the window only hands the commit over to the executor
+        ListenableFuture<Void> add = queue.addFlow(SWITCH, flow("f1", 100));
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(service.inputs.isEmpty());
+        Assert.assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        Assert.assertEquals(1, service.inputs.size());
+
+        // and so does the answer
+        service.answers.get(0).set(RpcResultBuilder.<ProcessFlatBatchOutput>success().build());
+        Assert.assertFalse(add.isDone());
+        tasks.remove(0).run();
+        Assert.assertNull(add.get());
+    }
+
+    @Test
+    public void testFlushOnSize() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        FakeFlatBatchService service = new FakeFlatBatchService();
+        FlowCommitQueue queue = new FlowCommitQueue(service, scheduler, 10, 2);
+
+        queue.addFlow(SWITCH, flow("f1", 100));
+        Assert.assertTrue(service.inputs.isEmpty());
+        queue.addFlow(SWITCH, flow("f2", 100));
+        Assert.assertEquals(1, service.inputs.size());
+
+        // the window has nothing left to send
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(1, service.inputs.size());
+
+        // the switches are batched on their own
+        queue.addFlow(new NodeId("openflow:2"), flow("f1", 100));
+        queue.addFlow(SWITCH, flow("f3", 100));
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(3, service.inputs.size());
+    }
+
+    @Test
+    public void testBatchFailure() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        FakeFlatBatchService service = new FakeFlatBatchService();
+        FlowCommitQueue queue = new FlowCommitQueue(service, scheduler, 10, 3);
+
+        ListenableFuture<Void> add1 = queue.addFlow(SWITCH, flow("f1", 100));
+        ListenableFuture<Void> remove2 = queue.removeFlow(SWITCH, flow("f2", 100));
+        ListenableFuture<Void> add3 = queue.addFlow(SWITCH, flow("f3", 100));
+        Assert.assertEquals(1, service.inputs.size());
+
+        // the kinds alternate, every change gets its own step
+        List<Batch> batches = service.inputs.get(0).getBatch();
+        Assert.assertEquals(3, batches.size());
+        Assert.assertTrue(batches.get(0).getBatchChoice() instanceof FlatBatchAddFlowCase);
+        Assert.assertTrue(batches.get(1).getBatchChoice() instanceof FlatBatchRemoveFlowCase);
+        Assert.assertTrue(batches.get(2).getBatchChoice() instanceof FlatBatchAddFlowCase);
+
+        // the failure points to the remove by its batch order
+        ProcessFlatBatchOutput output = new ProcessFlatBatchOutputBuilder()
+                .setBatchFailure(Collections.singletonList(new BatchFailureBuilder()
+                        .setBatchOrder(1)
+                        .build()))
+                .build();
+        service.answers.get(0).set(RpcResultBuilder.<ProcessFlatBatchOutput>failed()
+                .withResult(output)
+                .build());
+        Assert.assertNull(add1.get());
+        Assert.assertNull(add3.get());
+        try {
+            remove2.get();
+            Assert.fail("the remove didn't fail");
+        } catch(ExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        FakeFlatBatchService service = new FakeFlatBatchService();
+        FlowCommitQueue queue = new FlowCommitQueue(service, scheduler, 10, 256);
+
+        ListenableFuture<Void> add = queue.addFlow(SWITCH, flow("f1", 100));
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(1, service.inputs.size());
+
+        scheduler.advance(RpcFutures.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(service.answers.get(0).isCancelled());
+        try {
+            add.get();
+            Assert.fail("the change didn't time out");
+        } catch(ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    private static Flow flow(String id, int priority) {
+        return new FlowBuilder()
+                .setId(new FlowId(id))
+                .setTableId((short) 1)
+                .setPriority(priority)
+                .build();
+    }
+
+    private static class FakeFlatBatchService implements SalFlatBatchService {
+        final List<ProcessFlatBatchInput> inputs = new ArrayList<>();
+        final List<SettableFuture<RpcResult<ProcessFlatBatchOutput>>> answers = new ArrayList<>();
+
+        @Override
+        public Future<RpcResult<ProcessFlatBatchOutput>> processFlatBatch(ProcessFlatBatchInput input) {
+            SettableFuture<RpcResult<ProcessFlatBatchOutput>> answer = SettableFuture.create();
+            inputs.add(input);
+            answers.add(answer);
+            return answer;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.opendaylight.app.test;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.opendaylight.packet.FrameDecoder;
+import org.opendaylight.packet.FrameEncoder;
+
+import junit.framework.Assert;
+
+public class FrameDecoderTest {
+    private static final byte[] ARP_REQUEST = new byte[] {
+            // ethernet
+            (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+            0x56, (byte) 0xb6, 0x69, (byte) 0xd8, (byte) 0x8d, (byte) 0xd9,
+            (byte) 0x81, 0x00,
+            // vlan pcp 5, vid 100
+            (byte) 0xa0, 0x64, 0x08, 0x06,
+            // arp
+            0x00, 0x01, 0x08, 0x00, 0x06, 0x04, 0x00, 0x01,
+            0x56, (byte) 0xb6, 0x69, (byte) 0xd8, (byte) 0x8d, (byte) 0xd9,
+            0x01, 0x00, 0x00, 0x01,
+            0x00, 0x00, 0x00, 0x00, 0x00, 0x00,
+            0x01, 0x00, 0x00, 0x0b
+    };
+
+    private static final byte[] IPV4_PACKET = new byte[] {
+            // ethernet
+            0x01, 0x02, 0x03, 0x04, 0x05, 0x06,
+            0x56, (byte) 0xb6, 0x69, (byte) 0xd8, (byte) 0x8d, (byte) 0xd9,
+            (byte) 0x81, 0x00,
+            // vlan vid 200
+            0x00, (byte) 0xc8, 0x08, 0x00,
+            // ipv4
+            0x45, 0x00, 0x00, 0x54, 0x00, 0x00, 0x40, 0x00, 0x40, 0x01, 0x00, 0x00,
+            0x01, 0x00, 0x00, 0x01,
+            0x02, 0x00, 0x00, 0x01
+    };
+
+    @Test
+    public void testArpFrame() {
+        FrameDecoder frame = new FrameDecoder().wrap(ARP_REQUEST);
+
+        Assert.assertTrue(frame.isVlanTagged());
+        Assert.assertEquals(FrameDecoder.ETHERTYPE_VLAN, frame.getEtherType());
+        Assert.assertEquals(100, frame.getVlanId());
+        Assert.assertEquals(5, frame.getVlanPcp());
+        Assert.assertEquals(FrameDecoder.ETHERTYPE_ARP, frame.getPayloadEtherType());
+        Assert.assertTrue(frame.hasArpHeader());
+        Assert.assertFalse(frame.hasIpv4Header());
+        Assert.assertEquals(FrameDecoder.ARP_REQUEST, frame.getArpOperation());
+        Assert.assertEquals(0x56b669d88dd9L, frame.getArpSenderMac());
+        Assert.assertEquals(0x01000001, frame.getArpSenderIp());
+        Assert.assertEquals(0x0100000b, frame.getArpTargetIp());
+        Assert.assertEquals(0xffffffffffffL, frame.getDestinationMac());
+    }
+
+    @Test
+    public void testNonIpv4Arp() {
+        byte[] data = ARP_REQUEST.clone();
+        // protocol type ipv6
+        data[20] = (byte) 0x86;
+        data[21] = (byte) 0xdd;
+        FrameDecoder frame = new FrameDecoder().wrap(data);
+        Assert.assertEquals(FrameDecoder.ETHERTYPE_ARP, frame.getPayloadEtherType());
+        Assert.assertFalse(frame.hasArpHeader());
+
+        data = ARP_REQUEST.clone();
+        // hardware type ieee 802
+        data[19] = 0x06;
+        Assert.assertFalse(new FrameDecoder().wrap(data).hasArpHeader());
+
+        data = ARP_REQUEST.clone();
+        // protocol address length
+        data[23] = 0x10;
+        Assert.assertFalse(new FrameDecoder().wrap(data).hasArpHeader());
+    }
+
+    @Test
+    public void testIpv4Frame() {
+        FrameDecoder frame = new FrameDecoder().wrap(IPV4_PACKET);
+
+        Assert.assertEquals(200, frame.getVlanId());
+        Assert.assertTrue(frame.hasIpv4Header());
+        Assert.assertEquals(64, frame.getIpv4Ttl());
+        Assert.assertEquals(1, frame.getIpv4Protocol());
+        Assert.assertEquals(0x01000001, frame.getIpv4Source());
+        Assert.assertEquals(0x02000001, frame.getIpv4Destination());
+    }
+
+    @Test
+    public void testTruncatedIpv4Packet() {
+        // the sample holds the ipv4 header of an 84 bytes packet
+        Assert.assertTrue(new FrameDecoder().wrap(IPV4_PACKET).isIpv4Truncated());
+
+        byte[] data = Arrays.copyOf(IPV4_PACKET, 18 + 84);
+        Assert.assertFalse(new FrameDecoder().wrap(data).isIpv4Truncated());
+        data = Arrays.copyOf(IPV4_PACKET, 18 + 83);
+        Assert.assertTrue(new FrameDecoder().wrap(data).isIpv4Truncated());
+    }
+
+    @Test
+    public void testTruncatedFrame() {
+        FrameDecoder frame = new FrameDecoder().wrap(new byte[] {0x01, 0x02});
+        Assert.assertFalse(frame.hasEthernetHeader());
+        Assert.assertFalse(frame.isVlanTagged());
+        Assert.assertFalse(frame.hasArpHeader());
+    }
+
+    @Test
+    public void testRewrite() {
+        byte[] original = IPV4_PACKET.clone();
+        byte[] data = FrameEncoder.rewrite(original, false, 0x56fa96635a64L, 0x010203040506L, 3, 100);
+
+        Assert.assertTrue(data != original);
+        Assert.assertEquals(200, new FrameDecoder().wrap(original).getVlanId());
+
+        FrameDecoder frame = new FrameDecoder().wrap(data);
+        Assert.assertEquals(0x56fa96635a64L, frame.getDestinationMac());
+        Assert.assertEquals(0x010203040506L, frame.getSourceMac());
+        Assert.assertEquals(100, frame.getVlanId());
+        Assert.assertEquals(3, frame.getVlanPcp());
+        Assert.assertEquals(FrameDecoder.ETHERTYPE_IPV4, frame.getPayloadEtherType());
+        Assert.assertEquals(0x02000001, frame.getIpv4Destination());
+
+        Assert.assertTrue(FrameEncoder.rewrite(original, true, 0L, 0L, 0, 300) == original);
+        Assert.assertEquals(300, new FrameDecoder().wrap(original).getVlanId());
+        Assert.assertNull(FrameEncoder.rewrite(new byte[20], false, 0L, 0L, 0, 300));
+    }
+}
@@ -0,0 +1,164 @@
+package org.opendaylight.app.test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.opendaylight.controller.md.sal.common.api.data.AsyncDataChangeEvent;
+import org.opendaylight.router.InventoryCache;
+import org.opendaylight.router.PortRegistry;
+import org.opendaylight.router.SubInterfaceIndex;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.Action;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnector;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.node.NodeConnectorKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterfaceBuilder;
+import org.opendaylight.yangtools.yang.binding.DataObject;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+
+import junit.framework.Assert;
+
+public class InventoryCacheTest {
+    private static final NodeId SWITCH = new NodeId("openflow:1");
+
+    @Test
+    public void testLookup() {
+        InventoryCache inventory = new InventoryCache();
+        InventoryCache.PortRecord port = inventory.getPort(new NodeConnectorId("openflow:1:2"));
+
+        Assert.assertEquals(2, port.getNumber());
+        Assert.assertEquals(1, port.getHandle());
+        Assert.assertSame(inventory.getSwitch(SWITCH), port.getSwitch());
+        Assert.assertSame(port, inventory.getPort(new NodeConnectorId("openflow:1:2")));
+        Assert.assertSame(port, inventory.getPort(port.getSwitch(), 2));
+        Assert.assertSame(port, inventory.getPort(1));
+        Assert.assertNull(inventory.getPort(0));
+        Assert.assertNull(inventory.getPort(2));
+        Assert.assertEquals(nodeIid(SWITCH).child(NodeConnector.class,
+                new NodeConnectorKey(port.getId())), port.getIid());
+
+        // reserved ports have no number
+        InventoryCache.PortRecord local = inventory.getPort(new NodeConnectorId("openflow:1:LOCAL"));
+        Assert.assertEquals(-1, local.getNumber());
+        Assert.assertSame(local.getSwitch(), port.getSwitch());
+        Assert.assertEquals(1, inventory.size());
+    }
+
+    @Test
+    public void testDisconnect() {
+        InventoryCache inventory = new InventoryCache();
+        InventoryCache.PortRecord port = inventory.getPort(new NodeConnectorId("openflow:1:2"));
+        InventoryCache.PortRecord other = inventory.getPort(new NodeConnectorId("openflow:2:2"));
+        InventoryCache.SwitchRecord node = port.getSwitch();
+
+        // the handles of the switch find no port while it's gone
+        inventory.onDataChanged(new RemovedPath(nodeIid(SWITCH)));
+        Assert.assertNull(inventory.getPort(port.getHandle()));
+        Assert.assertSame(other, inventory.getPort(other.getHandle()));
+        Assert.assertEquals(1, inventory.size());
+
+        // the port comes back with its handle, in a new record
+        InventoryCache.PortRecord back = inventory.getPort(new NodeConnectorId("openflow:1:2"));
+        Assert.assertNotSame(port, back);
+        Assert.assertNotSame(node, back.getSwitch());
+        Assert.assertEquals(port.getHandle(), back.getHandle());
+        Assert.assertSame(back, inventory.getPort(port.getHandle()));
+
+        // a removed port alone
+        inventory.onDataChanged(new RemovedPath(nodeIid(SWITCH).child(NodeConnector.class,
+                new NodeConnectorKey(back.getId()))));
+        Assert.assertNull(inventory.getPort(back.getHandle()));
+        Assert.assertSame(back.getSwitch(), inventory.getSwitch(SWITCH));
+    }
+
+    @Test
+    public void testMaxPorts() {
+        InventoryCache inventory = new InventoryCache();
+        for(int i=0; i<PortRegistry.MAX_PORTS; i++) {
+            inventory.getPort(new NodeConnectorId("openflow:" + (i / 1024 + 1) + ":" + (i % 1024 + 1)));
+        }
+
+        // the port is found by id and number, not by handle
+        InventoryCache.PortRecord port = inventory.getPort(new NodeConnectorId("openflow:100:1"));
+        Assert.assertEquals(0, port.getHandle());
+        Assert.assertSame(port, inventory.getPort(inventory.getSwitch(new NodeId("openflow:100")), 1));
+        Assert.assertNull(inventory.getPort(0));
+
+        // a disconnect doesn't release the handles
+        inventory.onDataChanged(new RemovedPath(nodeIid(new NodeId("openflow:1"))));
+        Assert.assertNull(inventory.getPort(1));
+        Assert.assertEquals(0, inventory.getPort(new NodeConnectorId("openflow:100:2")).getHandle());
+        Assert.assertEquals(1, inventory.getPort(new NodeConnectorId("openflow:1:1")).getHandle());
+    }
+
+    @Test
+    public void testFloodActions() {
+        InventoryCache inventory = new InventoryCache();
+        InventoryCache.SwitchRecord node = inventory.getSwitch(SWITCH);
+        SubInterfaceIndex index = SubInterfaceIndex.EMPTY;
+        SubInterfaceIndex newIndex = SubInterfaceIndex.build(Collections.singletonList(new SubInterfaceBuilder()
+                .setInterface("veth100")
+                .setVlan(100)
+                .build()));
+        List<Action> actions = Collections.<Action>emptyList();
+
+        Assert.assertNull(node.getFloodActions(index, 100));
+        node.setFloodActions(index, 100, actions);
+        Assert.assertSame(actions, node.getFloodActions(index, 100));
+        Assert.assertNull(node.getFloodActions(index, 200));
+
+        // the actions of another configuration don't count
+        Assert.assertNull(node.getFloodActions(newIndex, 100));
+        node.setFloodActions(newIndex, 200, actions);
+        Assert.assertNull(node.getFloodActions(index, 100));
+        Assert.assertSame(actions, node.getFloodActions(newIndex, 200));
+    }
+
+    private static InstanceIdentifier<Node> nodeIid(NodeId nodeId) {
+        return InstanceIdentifier.create(Nodes.class).child(Node.class, new NodeKey(nodeId));
+    }
+
+    private static class RemovedPath implements AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> {
+        private final InstanceIdentifier<?> path;
+
+        RemovedPath(InstanceIdentifier<?> path) {
+            this.path = path;
+        }
+
+        @Override
+        public Map<InstanceIdentifier<?>, DataObject> getCreatedData() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Map<InstanceIdentifier<?>, DataObject> getUpdatedData() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Set<InstanceIdentifier<?>> getRemovedPaths() {
+            return Collections.<InstanceIdentifier<?>>singleton(path);
+        }
+
+        @Override
+        public Map<InstanceIdentifier<?>, DataObject> getOriginalData() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public DataObject getOriginalSubtree() {
+            return null;
+        }
+
+        @Override
+        public DataObject getUpdatedSubtree() {
+            return null;
+        }
+    }
+}
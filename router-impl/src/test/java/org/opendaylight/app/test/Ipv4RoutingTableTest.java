@@ -0,0 +1,55 @@
+package org.opendaylight.app.test;
+
+import org.junit.Test;
+import org.opendaylight.router.Ipv4RoutingTable;
+import org.opendaylight.router.PacketUtil;
+
+import junit.framework.Assert;
+
+public class Ipv4RoutingTableTest {
+    @Test
+    public void testLongestPrefixMatch() {
+        Ipv4RoutingTable<String> table = new Ipv4RoutingTable<>();
+        table.add(ip("10.1.2.0"), 24, "10.1.2.0/24");
+        table.add(ip("0.0.0.0"), 0, "default");
+        table.add(ip("10.0.0.0"), 8, "10.0.0.0/8");
+        table.add(ip("10.1.2.128"), 25, "10.1.2.128/25");
+        table.add(ip("10.1.0.0"), 20, "10.1.0.0/20");
+        table.add(ip("10.1.2.3"), 32, "10.1.2.3/32");
+        // host bits of the prefix are ignored
+        table.add(ip("192.168.77.1"), 12, "192.160.0.0/12");
+
+        Assert.assertEquals(7, table.size());
+        Assert.assertEquals("10.1.2.3/32", table.lookup(ip("10.1.2.3")));
+        Assert.assertEquals("10.1.2.0/24", table.lookup(ip("10.1.2.4")));
+        Assert.assertEquals("10.1.2.128/25", table.lookup(ip("10.1.2.200")));
+        Assert.assertEquals("10.1.0.0/20", table.lookup(ip("10.1.15.1")));
+        Assert.assertEquals("10.0.0.0/8", table.lookup(ip("10.1.16.1")));
+        Assert.assertEquals("192.160.0.0/12", table.lookup(ip("192.175.255.255")));
+        Assert.assertEquals("default", table.lookup(ip("192.176.0.0")));
+        Assert.assertEquals("default", table.lookup(ip("255.255.255.255")));
+    }
+
+    @Test
+    public void testReplace() {
+        Ipv4RoutingTable<String> table = new Ipv4RoutingTable<>();
+        Assert.assertNull(table.lookup(ip("1.0.0.1")));
+
+        table.add(ip("1.0.0.0"), 24, "a");
+        table.add(ip("1.0.0.0"), 24, "b");
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals("b", table.lookup(ip("1.0.0.1")));
+        Assert.assertNull(table.lookup(ip("1.0.1.1")));
+
+        try {
+            table.add(ip("1.0.0.0"), 33, "c");
+            Assert.fail("invalid prefix length accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static int ip(String address) {
+        return PacketUtil.parseIpv4(address);
+    }
+}
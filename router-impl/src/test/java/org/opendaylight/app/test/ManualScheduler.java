@@ -0,0 +1,102 @@
+package org.opendaylight.app.test;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Scheduler running the delayed tasks on the test thread as its clock is
+ * advanced, so the windows, timeouts and backoffs are tested without
+ * sleeping.
+ */
+class ManualScheduler extends ScheduledThreadPoolExecutor {
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>(16, new Comparator<Task>() {
+        @Override
+        public int compare(Task t1, Task t2) {
+            if(t1.deadline != t2.deadline) {
+                return t1.deadline < t2.deadline ? -1 : 1;
+            }
+            return Long.compare(t1.sequence, t2.sequence);
+        }
+    });
+    private long now;
+    private long sequence;
+
+    ManualScheduler() {
+        super(1);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        Task task = new Task(command, now + unit.toNanos(Math.max(0, delay)), sequence++);
+        tasks.add(task);
+        return task;
+    }
+
+    /**
+     * Move the clock forward, running the tasks which fall due in the order
+     * of their deadlines.
+     */
+    void advance(long delay, TimeUnit unit) {
+        long until = now + unit.toNanos(delay);
+        Task task;
+        while((task = tasks.peek()) != null && task.deadline <= until) {
+            tasks.poll();
+            now = task.deadline;
+            task.run();
+        }
+        now = until;
+    }
+
+    /**
+     * @return ticker reading the clock
+     */
+    Ticker ticker() {
+        return new Ticker() {
+            @Override
+            public long read() {
+                return now;
+            }
+        };
+    }
+
+    /**
+     * @return number of the tasks waiting for their deadline
+     */
+    int pending() {
+        int pending = 0;
+        for(Task task : tasks) {
+            if(!task.isCancelled()) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    private final class Task extends FutureTask<Void> implements ScheduledFuture<Void> {
+        final long deadline;
+        final long sequence;
+
+        Task(Runnable command, long deadline, long sequence) {
+            super(command, null);
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - now, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
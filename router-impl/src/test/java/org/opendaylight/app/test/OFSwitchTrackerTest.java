@@ -0,0 +1,544 @@
+package org.opendaylight.app.test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.opendaylight.controller.md.sal.common.api.data.AsyncDataChangeEvent;
+import org.opendaylight.router.InventoryCache;
+import org.opendaylight.router.OFSwitchTracker;
+import org.opendaylight.router.PacketUtil;
+import org.opendaylight.router.SubInterfaceIndex;
+import org.opendaylight.router.UserDataHandler;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev100924.Ipv4Address;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev100924.Ipv4Prefix;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.OutputActionCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.SetDlDstActionCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.SetDlSrcActionCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.action.SetVlanIdActionCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.action.types.rev131112.action.list.Action;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNode;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.FlowCapableNodeBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.inventory.rev130819.tables.table.Flow;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.AddFlowInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.AddFlowOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.RemoveFlowInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.RemoveFlowOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.SalFlowService;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.UpdateFlowInput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.service.rev130819.UpdateFlowOutput;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.flow.Match;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.ApplyActionsCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.GoToTableCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.MeterCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.instruction.WriteMetadataCase;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.flow.types.rev131026.instruction.list.Instruction;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeId;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.Nodes;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.Node;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.nodes.NodeKey;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.model.match.types.rev131026.match.layer._3.match.Ipv4Match;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.routes.StaticRouteBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterface;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterfaceBuilder;
+import org.opendaylight.yangtools.yang.binding.DataObject;
+import org.opendaylight.yangtools.yang.binding.InstanceIdentifier;
+import org.opendaylight.yangtools.yang.common.RpcResult;
+import org.opendaylight.yangtools.yang.common.RpcResultBuilder;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+import junit.framework.Assert;
+
+public class OFSwitchTrackerTest {
+    private static final int SOURCE = 0x01000001;
+    private static final int DESTINATION = 0x02000001;
+    private static final long DESTINATION_MAC = 0x56b669d88dd9L;
+    private static final String ROUTER_MAC = "01:02:03:04:05:06";
+    private static final BigInteger METADATA_MASK = BigInteger.valueOf(0xffffffffL);
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final FakeFlowService service = new FakeFlowService();
+    private final InventoryCache inventory = new InventoryCache();
+    private final InventoryCache.SwitchRecord node = inventory.getSwitch(new NodeId("openflow:1"));
+    private final InventoryCache.PortRecord inport = inventory.getPort(new NodeConnectorId("openflow:1:1"));
+    private final InventoryCache.PortRecord outport = inventory.getPort(new NodeConnectorId("openflow:1:2"));
+
+    @Test
+    public void testDeduplicate() {
+        OFSwitchTracker tracker = newTracker();
+
+        // the rewrite flow of the next hop goes first
+        Assert.assertTrue(install(tracker));
+        Assert.assertEquals(2, service.inputs.size());
+        Assert.assertEquals(2, service.inputs.get(0).getTableId().intValue());
+        Assert.assertEquals(1, service.inputs.get(1).getTableId().intValue());
+
+        // the packets punted meanwhile attach to the flows in flight
+        Assert.assertFalse(install(tracker));
+        Assert.assertEquals(2, service.inputs.size());
+
+        answer(0, true);
+        answer(1, true);
+        scheduler.advance(29, TimeUnit.SECONDS);
+        Assert.assertFalse(install(tracker));
+        Assert.assertEquals(2, service.inputs.size());
+    }
+
+    @Test
+    public void testHoldDown() {
+        OFSwitchTracker tracker = newTracker();
+        install(tracker);
+        answer(0, true);
+        answer(1, true);
+
+        // the flows may have idled out, they are sent again under their ids
+        scheduler.advance(30, TimeUnit.SECONDS);
+        Assert.assertTrue(install(tracker));
+        Assert.assertEquals(4, service.inputs.size());
+        Assert.assertEquals(service.inputs.get(0).getCookie(), service.inputs.get(2).getCookie());
+        Assert.assertEquals(service.inputs.get(1).getCookie(), service.inputs.get(3).getCookie());
+        Assert.assertFalse(service.inputs.get(0).getCookie().equals(service.inputs.get(1).getCookie()));
+    }
+
+    @Test
+    public void testRetry() {
+        OFSwitchTracker tracker = newTracker();
+        install(tracker);
+        answer(0, true);
+
+        // the backoff doubles with every attempt
+        answer(1, false);
+        scheduler.advance(99, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(2, service.inputs.size());
+        scheduler.advance(1, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(3, service.inputs.size());
+        Assert.assertEquals(service.inputs.get(1).getCookie(), service.inputs.get(2).getCookie());
+
+        answer(2, false);
+        scheduler.advance(199, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(3, service.inputs.size());
+        scheduler.advance(1, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(4, service.inputs.size());
+
+        // a retry in flight still deduplicates, a success ends the retries
+        Assert.assertFalse(install(tracker));
+        answer(3, true);
+        scheduler.advance(10, TimeUnit.SECONDS);
+        Assert.assertFalse(install(tracker));
+        Assert.assertEquals(4, service.inputs.size());
+        Assert.assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void testGiveUp() {
+        OFSwitchTracker tracker = newTracker();
+        install(tracker);
+        answer(0, true);
+
+        for(int attempt=1; attempt<=5; attempt++) {
+            Assert.assertEquals(1 + attempt, service.inputs.size());
+            answer(attempt, false);
+            scheduler.advance(100 << (attempt - 1), TimeUnit.MILLISECONDS);
+        }
+        // the fifth failure was the last attempt
+        Assert.assertEquals(6, service.inputs.size());
+        Assert.assertEquals(0, scheduler.pending());
+
+        // the next punted packet starts over, only with the routing flow
+        Assert.assertTrue(install(tracker));
+        Assert.assertEquals(7, service.inputs.size());
+        Assert.assertEquals(1, service.inputs.get(6).getTableId().intValue());
+        Assert.assertFalse(service.inputs.get(1).getCookie().equals(service.inputs.get(6).getCookie()));
+    }
+
+    @Test
+    public void testTimeout() {
+        OFSwitchTracker tracker = newTracker();
+        install(tracker);
+        answer(0, true);
+
+        // a switch which doesn't answer is retried
+        scheduler.advance(10, TimeUnit.SECONDS);
+        Assert.assertTrue(service.answers.get(1).isCancelled());
+        scheduler.advance(100, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(3, service.inputs.size());
+    }
+
+    @Test
+    public void testReplace() {
+        OFSwitchTracker tracker = newTracker();
+        install(tracker);
+
+        // the host moved while its rewrite flow was in flight
+        InventoryCache.PortRecord moved = inventory.getPort(new NodeConnectorId("openflow:1:3"));
+        tracker.installDestinationFlows(node, moved, DESTINATION, 200, DESTINATION_MAC + 1,
+                Collections.<SubInterfaceIndex.Route>emptyList());
+        Assert.assertEquals(3, service.inputs.size());
+        Assert.assertEquals(service.inputs.get(0).getCookie(), service.inputs.get(2).getCookie());
+
+        // the answer to the replaced flow doesn't count
+        answer(0, false);
+        scheduler.advance(1, TimeUnit.SECONDS);
+        Assert.assertEquals(3, service.inputs.size());
+    }
+
+    @Test
+    public void testRoutingFlow() {
+        OFSwitchTracker tracker = newTracker();
+        install(tracker);
+
+        // destination mode: the destination host, whatever the source
+        AddFlowInput flow = service.inputs.get(1);
+        Assert.assertEquals(1, flow.getTableId().intValue());
+        Assert.assertEquals(100 + 32, flow.getPriority().intValue());
+        Assert.assertEquals(30, flow.getIdleTimeout().intValue());
+        Assert.assertFalse(Boolean.TRUE.equals(flow.isBarrier()));
+        Match match = flow.getMatch();
+        assertRoutedIpv4(match);
+        Ipv4Match ipv4Match = (Ipv4Match) match.getLayer3Match();
+        Assert.assertEquals("2.0.0.1/32", ipv4Match.getIpv4Destination().getValue());
+        Assert.assertNull(ipv4Match.getIpv4Source());
+        Assert.assertNull(match.getInPort());
+        Assert.assertNull(match.getVlanMatch());
+
+        // tag the next hop, then rewrite
+        List<Instruction> instructions = flow.getInstructions().getInstruction();
+        Assert.assertEquals(2, instructions.size());
+        WriteMetadataCase writeMetadata = (WriteMetadataCase) instructions.get(0).getInstruction();
+        Assert.assertEquals(0, instructions.get(0).getOrder().intValue());
+        Assert.assertEquals(BigInteger.valueOf(DESTINATION), writeMetadata.getWriteMetadata().getMetadata());
+        Assert.assertEquals(METADATA_MASK, writeMetadata.getWriteMetadata().getMetadataMask());
+        GoToTableCase gotoTable = (GoToTableCase) instructions.get(1).getInstruction();
+        Assert.assertEquals(1, instructions.get(1).getOrder().intValue());
+        Assert.assertEquals(2, gotoTable.getGoToTable().getTableId().intValue());
+    }
+
+    @Test
+    public void testHostPairFlow() {
+        OFSwitchTracker tracker = newTracker();
+        tracker.setFlowMode(OFSwitchTracker.FlowMode.HOST_PAIR);
+        install(tracker);
+
+        Match match = service.inputs.get(1).getMatch();
+        assertRoutedIpv4(match);
+        Ipv4Match ipv4Match = (Ipv4Match) match.getLayer3Match();
+        Assert.assertEquals("2.0.0.1/32", ipv4Match.getIpv4Destination().getValue());
+        Assert.assertEquals("1.0.0.1/32", ipv4Match.getIpv4Source().getValue());
+        Assert.assertEquals("openflow:1:1", match.getInPort().getValue());
+        Assert.assertTrue(match.getVlanMatch().getVlanId().isVlanIdPresent());
+        Assert.assertEquals(100, match.getVlanMatch().getVlanId().getVlanId().getValue().intValue());
+        Assert.assertEquals(100 + 32, service.inputs.get(1).getPriority().intValue());
+
+        // another source gets its own flow, the rewrite is shared
+        tracker.installRoutingFlow(node, inport, outport, SOURCE + 1, DESTINATION, 100, 200,
+                DESTINATION_MAC, null);
+        Assert.assertEquals(3, service.inputs.size());
+        Assert.assertEquals(1, service.inputs.get(2).getTableId().intValue());
+    }
+
+    @Test
+    public void testSubnetFlow() {
+        SubInterface veth200 = new SubInterfaceBuilder()
+                .setInterface("veth200")
+                .setVlan(200)
+                .setIp("2.0.0.254")
+                .setPrefixLength((short) 24)
+                .setPort(Arrays.asList(2))
+                .build();
+        SubInterfaceIndex index = SubInterfaceIndex.build(Arrays.asList(veth200),
+                Arrays.asList(new StaticRouteBuilder()
+                        .setPrefix(new Ipv4Prefix("10.0.0.0/8"))
+                        .setNextHop(new Ipv4Address("2.0.0.1"))
+                        .build()));
+        int destination = PacketUtil.parseIpv4("10.1.2.3");
+        OFSwitchTracker tracker = newTracker();
+        tracker.setFlowMode(OFSwitchTracker.FlowMode.SUBNET);
+        tracker.installRoutingFlow(node, inport, outport, SOURCE, destination, 100, 200,
+                DESTINATION_MAC, index.getRoute(destination));
+
+        // the rewrite flow of the next hop and the flow of the whole prefix
+        Assert.assertEquals(2, service.inputs.size());
+        Match rewrite = service.inputs.get(0).getMatch();
+        Assert.assertEquals(BigInteger.valueOf(DESTINATION), rewrite.getMetadata().getMetadata());
+        AddFlowInput flow = service.inputs.get(1);
+        Assert.assertEquals("10.0.0.0/8",
+                ((Ipv4Match) flow.getMatch().getLayer3Match()).getIpv4Destination().getValue());
+        Assert.assertEquals(100 + 8, flow.getPriority().intValue());
+        WriteMetadataCase writeMetadata = (WriteMetadataCase) flow.getInstructions().getInstruction().get(0)
+                .getInstruction();
+        Assert.assertEquals(BigInteger.valueOf(DESTINATION), writeMetadata.getWriteMetadata().getMetadata());
+
+        // the other destinations of the prefix use the same flows
+        int other = PacketUtil.parseIpv4("10.9.9.9");
+        Assert.assertFalse(tracker.installRoutingFlow(node, inport, outport, SOURCE, other, 100, 200,
+                DESTINATION_MAC, index.getRoute(other)));
+    }
+
+    @Test
+    public void testRewriteFlow() {
+        OFSwitchTracker tracker = newTracker();
+        install(tracker);
+
+        AddFlowInput flow = service.inputs.get(0);
+        Assert.assertEquals(2, flow.getTableId().intValue());
+        Assert.assertEquals(100, flow.getPriority().intValue());
+        Assert.assertEquals(30, flow.getIdleTimeout().intValue());
+        Assert.assertFalse(Boolean.TRUE.equals(flow.isBarrier()));
+        Assert.assertEquals(BigInteger.valueOf(DESTINATION), flow.getMatch().getMetadata().getMetadata());
+        Assert.assertEquals(METADATA_MASK, flow.getMatch().getMetadata().getMetadataMask());
+
+        List<Instruction> instructions = flow.getInstructions().getInstruction();
+        Assert.assertEquals(1, instructions.size());
+        List<Action> actions = ((ApplyActionsCase) instructions.get(0).getInstruction())
+                .getApplyActions().getAction();
+        assertRewrite(actions, "56:b6:69:d8:8d:d9", 200);
+        Assert.assertEquals(4, actions.size());
+        Assert.assertEquals("openflow:1:2", output(actions.get(3)).getOutputAction()
+                .getOutputNodeConnector().getValue());
+    }
+
+    @Test
+    public void testRewriteActions() {
+        // a flood rewrites once and outputs on every port
+        List<Action> actions = OFSwitchTracker.getRewriteActions(100, 0xffffffffffffL,
+                Arrays.asList(new NodeConnectorId("openflow:1:1"), new NodeConnectorId("openflow:1:3")));
+        assertRewrite(actions, "ff:ff:ff:ff:ff:ff", 100);
+        Assert.assertEquals(5, actions.size());
+        Assert.assertEquals("openflow:1:1", output(actions.get(3)).getOutputAction()
+                .getOutputNodeConnector().getValue());
+        Assert.assertEquals("openflow:1:3", output(actions.get(4)).getOutputAction()
+                .getOutputNodeConnector().getValue());
+        for(int i=0; i<actions.size(); i++) {
+            Assert.assertEquals(i, actions.get(i).getOrder().intValue());
+        }
+    }
+
+    @Test
+    public void testPuntFlows() {
+        List<Flow> flows = OFSwitchTracker.getPuntFlows(1L);
+        Assert.assertEquals(3, flows.size());
+
+        Flow arp = flows.get(0);
+        Assert.assertEquals(1, arp.getTableId().intValue());
+        Assert.assertEquals(1, arp.getPriority().intValue());
+        Assert.assertEquals(0x0806L, arp.getMatch().getEthernetMatch().getEthernetType().getType()
+                .getValue().longValue());
+        Assert.assertNull(arp.getMatch().getEthernetMatch().getEthernetDestination());
+
+        Flow ipv4 = flows.get(1);
+        Assert.assertEquals(1, ipv4.getTableId().intValue());
+        Assert.assertEquals(1, ipv4.getPriority().intValue());
+        assertRoutedIpv4(ipv4.getMatch());
+        Assert.assertNull(ipv4.getMatch().getLayer3Match());
+
+        Flow rewriteMiss = flows.get(2);
+        Assert.assertEquals(2, rewriteMiss.getTableId().intValue());
+        Assert.assertEquals(0, rewriteMiss.getPriority().intValue());
+
+        // metered, and the whole packet goes to the controller
+        for(Flow flow : flows) {
+            List<Instruction> instructions = flow.getInstructions().getInstruction();
+            Assert.assertEquals(2, instructions.size());
+            MeterCase meter = (MeterCase) instructions.get(0).getInstruction();
+            Assert.assertEquals(1L, meter.getMeter().getMeterId().getValue().longValue());
+            assertPunt(instructions.get(1));
+        }
+
+        for(Flow flow : OFSwitchTracker.getPuntFlows(null)) {
+            List<Instruction> instructions = flow.getInstructions().getInstruction();
+            Assert.assertEquals(1, instructions.size());
+            assertPunt(instructions.get(0));
+        }
+    }
+
+    @Test
+    public void testPipelineFlows() {
+        Flow drop = OFSwitchTracker.getTableMissFlow((short) 0, "drop");
+        Assert.assertEquals(0, drop.getTableId().intValue());
+        Assert.assertEquals(0, drop.getPriority().intValue());
+        Assert.assertNull(drop.getInstructions());
+
+        Flow admission = OFSwitchTracker.getAdmissionFlow(new NodeId("openflow:1"), 3, 100);
+        Assert.assertEquals(0, admission.getTableId().intValue());
+        Assert.assertEquals(100, admission.getPriority().intValue());
+        Assert.assertEquals("openflow:1:3", admission.getMatch().getInPort().getValue());
+        Assert.assertTrue(admission.getMatch().getVlanMatch().getVlanId().isVlanIdPresent());
+        Assert.assertEquals(100, admission.getMatch().getVlanMatch().getVlanId().getVlanId().getValue()
+                .intValue());
+        List<Instruction> instructions = admission.getInstructions().getInstruction();
+        Assert.assertEquals(1, instructions.size());
+        Assert.assertEquals(1, ((GoToTableCase) instructions.get(0).getInstruction()).getGoToTable()
+                .getTableId().intValue());
+    }
+
+    @Test
+    public void testAdmissionRetry() {
+        OFSwitchTracker tracker = newTracker();
+        UserDataHandler userData = new UserDataHandler();
+        userData.putSubInterface(new SubInterfaceBuilder()
+                .setInterface("veth100")
+                .setVlan(100)
+                .setIp("1.0.0.254")
+                .setPrefixLength((short) 24)
+                .setPort(Arrays.asList(3))
+                .build());
+        tracker.setUserDataHandler(userData);
+        userData.setOFSwitchTracker(tracker);
+
+        // two table miss flows, three punt flows and the admission flow
+        tracker.onDataChanged(new SwitchAdded(node.getId()));
+        Assert.assertEquals(6, service.inputs.size());
+        AddFlowInput admission = service.inputs.get(5);
+        Assert.assertEquals("openflow:1:3", admission.getMatch().getInPort().getValue());
+        for(int i=0; i<5; i++) {
+            answer(i, true);
+        }
+
+        // a failed add is sent again rather than left as installed
+        answer(5, false);
+        scheduler.advance(100, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(7, service.inputs.size());
+        Assert.assertEquals(admission.getFlowRef(), service.inputs.get(6).getFlowRef());
+        answer(6, true);
+        scheduler.advance(10, TimeUnit.SECONDS);
+        Assert.assertEquals(7, service.inputs.size());
+
+        // nor is a flow which isn't configured anymore
+        tracker.updateAdmissionFlows();
+        Assert.assertEquals(7, service.inputs.size());
+        userData.putSubInterface(new SubInterfaceBuilder()
+                .setInterface("veth200")
+                .setVlan(200)
+                .setIp("2.0.0.254")
+                .setPrefixLength((short) 24)
+                .setPort(Arrays.asList(3))
+                .build());
+        Assert.assertEquals(8, service.inputs.size());
+        answer(7, false);
+        userData.removeSubInterface("veth200");
+        scheduler.advance(10, TimeUnit.SECONDS);
+        Assert.assertEquals(8, service.inputs.size());
+    }
+
+    private OFSwitchTracker newTracker() {
+        OFSwitchTracker tracker = new OFSwitchTracker(service);
+        tracker.setScheduler(scheduler);
+        tracker.setTicker(scheduler.ticker());
+        return tracker;
+    }
+
+    private boolean install(OFSwitchTracker tracker) {
+        return tracker.installRoutingFlow(node, inport, outport, SOURCE, DESTINATION, 100, 200,
+                DESTINATION_MAC, null);
+    }
+
+    private void answer(int index, boolean success) {
+        service.answers.get(index).set(success
+                ? RpcResultBuilder.<AddFlowOutput>success().build()
+                : RpcResultBuilder.<AddFlowOutput>failed().build());
+    }
+
+    // ipv4 sent to the router
+    private static void assertRoutedIpv4(Match match) {
+        Assert.assertEquals(0x0800L, match.getEthernetMatch().getEthernetType().getType().getValue().longValue());
+        Assert.assertEquals(ROUTER_MAC, match.getEthernetMatch().getEthernetDestination().getAddress().getValue());
+    }
+
+    private static void assertRewrite(List<Action> actions, String destinationMac, int vlan) {
+        Assert.assertEquals(destinationMac, ((SetDlDstActionCase) actions.get(0).getAction())
+                .getSetDlDstAction().getAddress().getValue());
+        Assert.assertEquals(ROUTER_MAC, ((SetDlSrcActionCase) actions.get(1).getAction())
+                .getSetDlSrcAction().getAddress().getValue());
+        Assert.assertEquals(vlan, ((SetVlanIdActionCase) actions.get(2).getAction())
+                .getSetVlanIdAction().getVlanId().getValue().intValue());
+    }
+
+    private static void assertPunt(Instruction instruction) {
+        List<Action> actions = ((ApplyActionsCase) instruction.getInstruction()).getApplyActions().getAction();
+        Assert.assertEquals(1, actions.size());
+        OutputActionCase output = output(actions.get(0));
+        Assert.assertEquals("CONTROLLER", output.getOutputAction().getOutputNodeConnector().getValue());
+        Assert.assertEquals(0xffff, output.getOutputAction().getMaxLength().intValue());
+    }
+
+    private static OutputActionCase output(Action action) {
+        return (OutputActionCase) action.getAction();
+    }
+
+    private static class SwitchAdded implements AsyncDataChangeEvent<InstanceIdentifier<?>, DataObject> {
+        private final Map<InstanceIdentifier<?>, DataObject> created;
+
+        SwitchAdded(NodeId nodeId) {
+            created = Collections.<InstanceIdentifier<?>, DataObject>singletonMap(
+                    InstanceIdentifier.create(Nodes.class).child(Node.class, new NodeKey(nodeId)),
+                    new NodeBuilder()
+                    .setId(nodeId)
+                    .addAugmentation(FlowCapableNode.class, new FlowCapableNodeBuilder().build())
+                    .build());
+        }
+
+        @Override
+        public Map<InstanceIdentifier<?>, DataObject> getCreatedData() {
+            return created;
+        }
+
+        @Override
+        public Map<InstanceIdentifier<?>, DataObject> getUpdatedData() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Set<InstanceIdentifier<?>> getRemovedPaths() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Map<InstanceIdentifier<?>, DataObject> getOriginalData() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public DataObject getOriginalSubtree() {
+            return null;
+        }
+
+        @Override
+        public DataObject getUpdatedSubtree() {
+            return null;
+        }
+    }
+
+    private static class FakeFlowService implements SalFlowService {
+        final List<AddFlowInput> inputs = new ArrayList<>();
+        final List<SettableFuture<RpcResult<AddFlowOutput>>> answers = new ArrayList<>();
+
+        @Override
+        public Future<RpcResult<AddFlowOutput>> addFlow(AddFlowInput input) {
+            SettableFuture<RpcResult<AddFlowOutput>> answer = SettableFuture.create();
+            inputs.add(input);
+            answers.add(answer);
+            return answer;
+        }
+
+        @Override
+        public Future<RpcResult<RemoveFlowOutput>> removeFlow(RemoveFlowInput input) {
+            return Futures.immediateFuture(RpcResultBuilder.<RemoveFlowOutput>success().build());
+        }
+
+        @Override
+        public Future<RpcResult<UpdateFlowOutput>> updateFlow(UpdateFlowInput input) {
+            return Futures.immediateFuture(RpcResultBuilder.<UpdateFlowOutput>success().build());
+        }
+    }
+}
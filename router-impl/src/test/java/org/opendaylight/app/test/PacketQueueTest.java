@@ -0,0 +1,73 @@
+package org.opendaylight.app.test;
+
+import org.junit.Test;
+import org.opendaylight.router.PacketQueue;
+import org.opendaylight.router.PacketQueue.DropPolicy;
+
+import junit.framework.Assert;
+
+public class PacketQueueTest {
+    @Test
+    public void testDropNewest() {
+        PacketQueue<String> queue = new PacketQueue<>(2, DropPolicy.DROP_NEWEST);
+        Assert.assertTrue(queue.offer("a"));
+        Assert.assertTrue(queue.offer("b"));
+        Assert.assertFalse(queue.offer("c"));
+        Assert.assertEquals(1, queue.getDropped());
+        Assert.assertEquals("a", queue.poll());
+        Assert.assertEquals("b", queue.poll());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testDropOldest() {
+        PacketQueue<String> queue = new PacketQueue<>(2, DropPolicy.DROP_OLDEST);
+        Assert.assertTrue(queue.offer("a"));
+        Assert.assertTrue(queue.offer("b"));
+        Assert.assertTrue(queue.offer("c"));
+        Assert.assertEquals(1, queue.getDropped());
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals("b", queue.poll());
+        Assert.assertEquals("c", queue.poll());
+    }
+
+    @Test
+    public void testPriorities() {
+        PacketQueue<String> queue = new PacketQueue<>(3, DropPolicy.DROP_NEWEST, 2, 1);
+        Assert.assertTrue(queue.offer("low1", 1));
+        Assert.assertTrue(queue.offer("low2", 1));
+        Assert.assertTrue(queue.offer("high1", 0));
+        Assert.assertTrue(queue.offer("high2", 0));
+        Assert.assertTrue(queue.offer("high3", 0));
+        // a full class doesn't take the room of the other
+        Assert.assertFalse(queue.offer("high4", 0));
+        Assert.assertTrue(queue.offer("low3", 1));
+        Assert.assertEquals(1, queue.getDropped(0));
+        Assert.assertEquals(0, queue.getDropped(1));
+        Assert.assertEquals(6, queue.size());
+
+        // two high for one low
+        Assert.assertEquals("high1", queue.poll());
+        Assert.assertEquals("high2", queue.poll());
+        Assert.assertEquals("low1", queue.poll());
+        Assert.assertEquals("high3", queue.poll());
+        // the high class is empty, the low class isn't held up
+        Assert.assertEquals("low2", queue.poll());
+        Assert.assertEquals("low3", queue.poll());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testTake() throws InterruptedException {
+        final PacketQueue<String> queue = new PacketQueue<>(2, DropPolicy.DROP_OLDEST);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.offer("a");
+            }
+        });
+        producer.start();
+        Assert.assertEquals("a", queue.take());
+        producer.join();
+    }
+}
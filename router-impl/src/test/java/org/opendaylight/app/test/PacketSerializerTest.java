@@ -3,6 +3,8 @@ package org.opendaylight.app.test;
 import org.junit.Test;
 import org.opendaylight.packet.ArpFrame;
 import org.opendaylight.packet.EthernetFrame;
+import org.opendaylight.packet.FrameDecoder;
+import org.opendaylight.packet.FrameEncoder;
 import org.opendaylight.packet.VlanFrame;
 import org.opendaylight.router.PacketUtil;
 
@@ -57,4 +59,32 @@ public class PacketSerializerTest {
             Assert.fail("received packet exception.");
         }
     }
+
+    @Test
+    public void testFrameEncoderVlan() {
+        byte[] buf = new byte[4];
+        int offset = FrameEncoder.putVlan(buf, 0, 3, 0, 100, 0x0806);
+        Assert.assertEquals(4, offset);
+        Assert.assertEquals("60640806", PacketUtil.bytesToHexString(buf));
+    }
+
+    @Test
+    public void testFrameEncoderArpReply() {
+        byte[] buf = new byte[FrameEncoder.ARP_FRAME_SIZE];
+        int offset = FrameEncoder.putEthernet(buf, 0, 0x56b669d88dd9L, 0x010203040506L, FrameDecoder.ETHERTYPE_VLAN);
+        offset = FrameEncoder.putVlan(buf, offset, 0, 0, 100, FrameDecoder.ETHERTYPE_ARP);
+        offset = FrameEncoder.putArp(buf, offset, FrameDecoder.ARP_REPLY,
+                0x010203040506L, 0x0100000b, 0x56b669d88dd9L, 0x01000001);
+        Assert.assertEquals(FrameEncoder.ARP_FRAME_SIZE, offset);
+
+        FrameDecoder frame = new FrameDecoder().wrap(buf);
+        Assert.assertEquals(0x56b669d88dd9L, frame.getDestinationMac());
+        Assert.assertEquals(100, frame.getVlanId());
+        Assert.assertTrue(frame.hasArpHeader());
+        Assert.assertEquals(FrameDecoder.ARP_REPLY, frame.getArpOperation());
+        Assert.assertEquals(0x010203040506L, frame.getArpSenderMac());
+        Assert.assertEquals(0x0100000b, frame.getArpSenderIp());
+        Assert.assertEquals(0x01000001, frame.getArpTargetIp());
+        Assert.assertEquals("0001080006040002", PacketUtil.bytesToHexString(buf).substring(36, 52));
+    }
 }
@@ -32,4 +32,43 @@ public class PacketUtilTest {
             i++;
         }
     }
+
+    @Test
+    public void testIpv4Codec() {
+        Assert.assertEquals(0x0100000b, PacketUtil.parseIpv4("1.0.0.11"));
+        Assert.assertEquals(0xc0a80101, PacketUtil.parseIpv4("192.168.1.1"));
+        Assert.assertEquals("192.168.1.1", PacketUtil.ipv4ToString(0xc0a80101));
+
+        byte[] data = new byte[6];
+        PacketUtil.putIpv4(data, 2, 0xc0a80101);
+        Assert.assertEquals(0xc0a80101, PacketUtil.getIpv4(data, 2));
+
+        for(String invalid : new String[] {"1.0.0", "1.0.0.256", "1..0.0", "a.b.c.d", "1.0.0.1."}) {
+            try {
+                PacketUtil.parseIpv4(invalid);
+                Assert.fail("parsed invalid address " + invalid);
+            } catch(IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testMacCodec() {
+        Assert.assertEquals(0x56b669d88dd9L, PacketUtil.parseMac("56:b6:69:d8:8d:d9"));
+        Assert.assertEquals(0x010203040506L, PacketUtil.parseMac("010203040506"));
+        Assert.assertEquals("56:b6:69:d8:8d:d9", PacketUtil.macToString(0x56b669d88dd9L));
+
+        byte[] data = new byte[8];
+        PacketUtil.putMac(data, 1, 0xffeeddccbbaaL);
+        Assert.assertEquals(0xffeeddccbbaaL, PacketUtil.getMac(data, 1));
+    }
+
+    @Test
+    public void testIpv4Network() {
+        Assert.assertEquals(0xffffff00, PacketUtil.ipv4Mask(24));
+        Assert.assertEquals(0, PacketUtil.ipv4Mask(0));
+        Assert.assertEquals(-1, PacketUtil.ipv4Mask(32));
+        Assert.assertEquals(0x02000000, PacketUtil.ipv4Network(0x02000001, 8));
+    }
 }
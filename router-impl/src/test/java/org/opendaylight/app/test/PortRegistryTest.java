@@ -0,0 +1,42 @@
+package org.opendaylight.app.test;
+
+import org.junit.Test;
+import org.opendaylight.router.PortRegistry;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.inventory.rev130819.NodeConnectorId;
+
+import junit.framework.Assert;
+
+public class PortRegistryTest {
+    @Test
+    public void testIntern() {
+        PortRegistry registry = new PortRegistry();
+        NodeConnectorId port1 = new NodeConnectorId("openflow:1:1");
+        NodeConnectorId port2 = new NodeConnectorId("openflow:1:2");
+
+        Assert.assertEquals(1, registry.intern(port1));
+        Assert.assertEquals(2, registry.intern(port2));
+        Assert.assertEquals(1, registry.intern(new NodeConnectorId("openflow:1:1")));
+        Assert.assertEquals(port1, registry.get(1));
+        Assert.assertEquals(port2, registry.get(2));
+        Assert.assertNull(registry.get(3));
+        Assert.assertNull(registry.get(0));
+        Assert.assertNull(registry.get(-1));
+        Assert.assertNull(registry.get(PortRegistry.MAX_PORTS + 1));
+    }
+
+    @Test
+    public void testMaxPorts() {
+        PortRegistry registry = new PortRegistry();
+        for(int i=1; i<=PortRegistry.MAX_PORTS; i++) {
+            Assert.assertEquals(i, registry.intern(new NodeConnectorId("openflow:1:" + i)));
+        }
+
+        // the handles are never recycled, the ports seen after the last one get none
+        Assert.assertEquals(0, registry.intern(new NodeConnectorId("openflow:2:1")));
+        Assert.assertEquals(0, registry.intern(new NodeConnectorId("openflow:2:1")));
+        Assert.assertEquals(PortRegistry.MAX_PORTS,
+                registry.intern(new NodeConnectorId("openflow:1:" + PortRegistry.MAX_PORTS)));
+        Assert.assertEquals("openflow:1:" + PortRegistry.MAX_PORTS,
+                registry.get(PortRegistry.MAX_PORTS).getValue());
+    }
+}
@@ -0,0 +1,79 @@
+package org.opendaylight.app.test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.opendaylight.router.RpcFutures;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import junit.framework.Assert;
+
+public class RpcFuturesTest {
+    @Test
+    public void testListen() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        SettableFuture<String> listenable = SettableFuture.create();
+        Assert.assertSame(listenable, RpcFutures.listen(listenable, scheduler));
+
+        // a plain future is polled on the scheduler
+        FutureTask<String> plain = task("done");
+        ListenableFuture<String> adapted = RpcFutures.listen(plain, scheduler);
+        Assert.assertFalse(adapted.isDone());
+        plain.run();
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        Assert.assertEquals("done", adapted.get());
+        Assert.assertEquals(0, scheduler.pending());
+
+        // cancelling the adapted future, as a timeout does, cancels the plain one
+        FutureTask<String> silent = task("late");
+        adapted = RpcFutures.listen(silent, scheduler);
+        adapted.cancel(false);
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        Assert.assertTrue(silent.isCancelled());
+        Assert.assertEquals(0, scheduler.pending());
+
+        // without a scheduler, a done future completes at once
+        FutureTask<String> done = task("now");
+        done.run();
+        Assert.assertEquals("now", RpcFutures.listen(done, null).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        ManualScheduler scheduler = new ManualScheduler();
+        SettableFuture<String> answered = SettableFuture.create();
+        ListenableFuture<String> result = RpcFutures.withTimeout(answered, 10, TimeUnit.SECONDS, scheduler);
+        answered.set("ok");
+        Assert.assertEquals("ok", result.get());
+        Assert.assertEquals(0, scheduler.pending());
+
+        SettableFuture<String> silent = SettableFuture.create();
+        result = RpcFutures.withTimeout(silent, 10, TimeUnit.MILLISECONDS, scheduler);
+        scheduler.advance(9, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(result.isDone());
+        scheduler.advance(1, TimeUnit.MILLISECONDS);
+        try {
+            result.get();
+            Assert.fail("no timeout");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertTrue(silent.isCancelled());
+
+        // without a scheduler there is no timeout
+        Assert.assertSame(silent, RpcFutures.withTimeout(silent, 10, TimeUnit.MILLISECONDS, null));
+    }
+
+    private static FutureTask<String> task(String value) {
+        return new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, value);
+    }
+}
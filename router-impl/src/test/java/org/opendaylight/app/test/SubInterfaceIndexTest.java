@@ -0,0 +1,176 @@
+package org.opendaylight.app.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.opendaylight.router.PacketUtil;
+import org.opendaylight.router.SubInterfaceIndex;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev100924.Ipv4Address;
+import org.opendaylight.yang.gen.v1.urn.ietf.params.xml.ns.yang.ietf.inet.types.rev100924.Ipv4Prefix;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.routes.StaticRoute;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.routes.StaticRouteBuilder;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterface;
+import org.opendaylight.yang.gen.v1.urn.opendaylight.params.xml.ns.yang.router.rev150105.subinterfaces.SubInterfaceBuilder;
+
+import junit.framework.Assert;
+
+public class SubInterfaceIndexTest {
+    @Test
+    public void testLookup() {
+        SubInterface veth100 = new SubInterfaceBuilder()
+                .setInterface("veth100")
+                .setVlan(100)
+                .setIp("1.0.0.0")
+                .setPort(Arrays.asList(1, 3))
+                .build();
+        SubInterface veth200 = new SubInterfaceBuilder()
+                .setInterface("veth200")
+                .setVlan(200)
+                .setIp("2.0.0.0")
+                .setPort(Arrays.asList(2))
+                .build();
+        SubInterfaceIndex index = SubInterfaceIndex.build(Arrays.asList(veth100, veth200));
+
+        Assert.assertEquals(2, index.size());
+        Assert.assertTrue(index.isVlanAllowed(1, 100));
+        Assert.assertTrue(index.isVlanAllowed(3, 100));
+        Assert.assertTrue(index.isVlanAllowed(2, 200));
+        Assert.assertFalse(index.isVlanAllowed(2, 100));
+        Assert.assertFalse(index.isVlanAllowed(4, 100));
+        Assert.assertFalse(index.isVlanAllowed(1, 4095));
+
+        Assert.assertSame(veth200, index.getByVlan(200));
+        Assert.assertNull(index.getByVlan(300));
+        Assert.assertSame(veth100, index.getForIp(PacketUtil.parseIpv4("1.0.0.12")));
+        Assert.assertSame(veth200, index.getForIp(PacketUtil.parseIpv4("2.0.0.1")));
+        Assert.assertNull(index.getForIp(PacketUtil.parseIpv4("3.0.0.1")));
+    }
+
+    @Test
+    public void testPortVlans() {
+        SubInterface veth100 = new SubInterfaceBuilder()
+                .setInterface("veth100")
+                .setVlan(100)
+                .setPort(Arrays.asList(1, 3))
+                .build();
+        SubInterface veth4000 = new SubInterfaceBuilder()
+                .setInterface("veth4000")
+                .setVlan(4000)
+                .setPort(Arrays.asList(3))
+                .build();
+        SubInterfaceIndex index = SubInterfaceIndex.build(Arrays.asList(veth100, veth4000));
+
+        Assert.assertTrue(Arrays.equals(new int[] {1, 3}, index.getPorts()));
+        Assert.assertTrue(Arrays.equals(new int[] {100}, index.getVlans(1)));
+        Assert.assertTrue(Arrays.equals(new int[] {100, 4000}, index.getVlans(3)));
+        Assert.assertEquals(0, index.getVlans(2).length);
+        Assert.assertEquals(0, index.getVlans(64).length);
+        Assert.assertEquals(0, SubInterfaceIndex.EMPTY.getPorts().length);
+    }
+
+    @Test
+    public void testPrefixLength() {
+        SubInterface veth100 = new SubInterfaceBuilder()
+                .setInterface("veth100")
+                .setVlan(100)
+                .setIp("1.0.0.11")
+                .setPrefixLength((short) 24)
+                .setPort(Arrays.asList(1))
+                .build();
+        SubInterface veth200 = new SubInterfaceBuilder()
+                .setInterface("veth200")
+                .setVlan(200)
+                .setIp("2.0.0.11")
+                .setPrefixLength((short) 8)
+                .setPort(Arrays.asList(2))
+                .build();
+        SubInterfaceIndex index = SubInterfaceIndex.build(Arrays.asList(veth100, veth200));
+
+        Assert.assertSame(veth100, index.getForIp(PacketUtil.parseIpv4("1.0.0.1")));
+        Assert.assertNull(index.getForIp(PacketUtil.parseIpv4("1.0.1.1")));
+        Assert.assertSame(veth200, index.getForIp(PacketUtil.parseIpv4("2.200.0.1")));
+
+        SubInterfaceIndex.Route route = index.getRoute(PacketUtil.parseIpv4("2.0.0.1"));
+        Assert.assertEquals(PacketUtil.parseIpv4("2.0.0.0"), route.getPrefix());
+        Assert.assertEquals(8, route.getPrefixLength());
+        Assert.assertEquals(0, route.getNextHop());
+    }
+
+    @Test
+    public void testStaticRoutes() {
+        SubInterface veth100 = new SubInterfaceBuilder()
+                .setInterface("veth100")
+                .setVlan(100)
+                .setIp("1.0.0.11")
+                .setPrefixLength((short) 24)
+                .setPort(Arrays.asList(1))
+                .build();
+        StaticRoute viaHost = new StaticRouteBuilder()
+                .setPrefix(new Ipv4Prefix("10.0.0.0/8"))
+                .setNextHop(new Ipv4Address("1.0.0.5"))
+                .build();
+        StaticRoute unreachable = new StaticRouteBuilder()
+                .setPrefix(new Ipv4Prefix("20.0.0.0/8"))
+                .setNextHop(new Ipv4Address("3.0.0.5"))
+                .build();
+        SubInterfaceIndex index = SubInterfaceIndex.build(Arrays.asList(veth100),
+                Arrays.asList(viaHost, unreachable));
+
+        SubInterfaceIndex.Route route = index.getRoute(PacketUtil.parseIpv4("10.1.2.3"));
+        Assert.assertSame(veth100, route.getSubInterface());
+        Assert.assertEquals(PacketUtil.parseIpv4("1.0.0.5"), route.getNextHop());
+        Assert.assertNull(index.getRoute(PacketUtil.parseIpv4("20.1.2.3")));
+        Assert.assertEquals(1, index.getRoutesVia(PacketUtil.parseIpv4("1.0.0.5")).size());
+        Assert.assertTrue(index.getRoutesVia(PacketUtil.parseIpv4("1.0.0.6")).isEmpty());
+    }
+
+    @Test
+    public void testAddress() {
+        SubInterface veth100 = new SubInterfaceBuilder()
+                .setInterface("veth100")
+                .setVlan(100)
+                .setIp("1.0.0.11")
+                .setPrefixLength((short) 24)
+                .build();
+        SubInterface network = new SubInterfaceBuilder()
+                .setInterface("veth200")
+                .setVlan(200)
+                .setIp("2.0.0.0")
+                .setPrefixLength((short) 8)
+                .build();
+        SubInterface broadcast = new SubInterfaceBuilder()
+                .setInterface("veth300")
+                .setVlan(300)
+                .setIp("3.0.0.255")
+                .build();
+        SubInterface pointToPoint = new SubInterfaceBuilder()
+                .setInterface("veth400")
+                .setVlan(400)
+                .setIp("4.0.0.0")
+                .setPrefixLength((short) 31)
+                .build();
+        SubInterface invalid = new SubInterfaceBuilder()
+                .setInterface("veth500")
+                .setVlan(500)
+                .setIp("5.0.0")
+                .build();
+        SubInterfaceIndex index = SubInterfaceIndex.build(
+                Arrays.asList(veth100, network, broadcast, pointToPoint, invalid));
+
+        Assert.assertEquals(PacketUtil.parseIpv4("1.0.0.11"), index.getAddress(100));
+        Assert.assertEquals(0, index.getAddress(200));
+        Assert.assertEquals(0, index.getAddress(300));
+        Assert.assertEquals(PacketUtil.parseIpv4("4.0.0.0"), index.getAddress(400));
+        Assert.assertEquals(0, index.getAddress(500));
+        Assert.assertEquals(0, index.getAddress(600));
+    }
+
+    @Test
+    public void testEmpty() {
+        SubInterfaceIndex index = SubInterfaceIndex.build(Collections.<SubInterface>emptyList());
+        Assert.assertSame(SubInterfaceIndex.EMPTY, index);
+        Assert.assertFalse(index.isVlanAllowed(1, 100));
+        Assert.assertNull(index.getForIp(PacketUtil.parseIpv4("1.0.0.1")));
+    }
+}